@@ -60,6 +60,10 @@ To do:
 #include <cmath>
 #include <iostream>
 #include <vector>
+#include <map>
+#include <string>
+#include <io.h>
+#include <fcntl.h>
 #include <libxml/xpath.h>
 
 using namespace std;
@@ -499,23 +503,17 @@ int measureColorBGR(IplImage* image, int colorValues[3], CvPoint middle, int sam
 	return 0;
 }
 
-int match(IplImage* image, IplImage* object, CvPoint dst_corners[4])
+int matchKeypoints(IplImage* image, CvSeq* objectKeypoints, CvSeq* objectDescriptors,
+				   int width, int height, CvMemStorage* storage, CvPoint dst_corners[4])
 {
-	CvSeq *objectKeypoints = 0, *objectDescriptors = 0;
 	CvSeq *imageKeypoints = 0, *imageDescriptors = 0;
-
-	CvMemStorage* storage = cvCreateMemStorage(0);
 	CvSURFParams params = cvSURFParams(500, 1);
 
-	// Extract descriptors for the target
-	cvExtractSURF( object, 0, &objectKeypoints, &objectDescriptors, storage, params );
-	printf("Object Descriptors: %d\n", objectDescriptors->total);
-
 	// Extract descriptors for the image (book etc.)
 	cvExtractSURF( image, 0, &imageKeypoints, &imageDescriptors, storage, params );
 	printf("Image Descriptors: %d\n", imageDescriptors->total);
 
-	CvPoint src_corners[4] = {{0,0}, {object->width,0}, {object->width, object->height}, {0, object->height}};
+	CvPoint src_corners[4] = {{0,0}, {width,0}, {width, height}, {0, height}};
 
 	if(!locatePlanarObject( objectKeypoints, objectDescriptors, imageKeypoints,
 					   imageDescriptors, src_corners, dst_corners ))
@@ -527,6 +525,21 @@ int match(IplImage* image, IplImage* object, CvPoint dst_corners[4])
 		return 1;
 }
 
+int match(IplImage* image, IplImage* object, CvPoint dst_corners[4])
+{
+	CvSeq *objectKeypoints = 0, *objectDescriptors = 0;
+
+	CvMemStorage* storage = cvCreateMemStorage(0);
+	CvSURFParams params = cvSURFParams(500, 1);
+
+	// Extract descriptors for the target
+	cvExtractSURF( object, 0, &objectKeypoints, &objectDescriptors, storage, params );
+	printf("Object Descriptors: %d\n", objectDescriptors->total);
+
+	return matchKeypoints(image, objectKeypoints, objectDescriptors, object->width,
+						  object->height, storage, dst_corners);
+}
+
 // Compute the center postion of the patches
 void computePatches(CvPoint dst_corners[4], double patchPos[][2], CvPoint pos[], int numPatches, 
 					double angle, int scale, int upsideDown, int xSize, int ySize, IplImage* image) {
@@ -567,22 +580,317 @@ void computePatches(CvPoint dst_corners[4], double patchPos[][2], CvPoint pos[],
 		pos[i].y = (int) (j + k + scale*dst_corners[0].y);
 
 		// Show computed patch centers and the outline of the target
-		cvLine(image, cvPoint (scale*dst_corners[0].x, scale*dst_corners[0].y), 
-			cvPoint (scale*dst_corners[1].x, scale*dst_corners[1].y), cvScalar(0,255,255), 12);
-		cvLine(image, cvPoint (scale*dst_corners[1].x, scale*dst_corners[1].y), 
-			cvPoint (scale*dst_corners[2].x, scale*dst_corners[2].y), cvScalar(0,255,255), 12);
-		cvLine(image, cvPoint (scale*dst_corners[2].x, scale*dst_corners[2].y), 
-			cvPoint (scale*dst_corners[3].x, scale*dst_corners[3].y), cvScalar(0,255,255), 12);
-		cvLine(image, cvPoint (scale*dst_corners[3].x, scale*dst_corners[3].y), 
-			cvPoint (scale*dst_corners[0].x, scale*dst_corners[0].y), cvScalar(0,255,255), 12);
-		cvCircle(image, cvPoint(pos[i].x, pos[i].y), 7, cvScalar(0,255,255), 15);
+		if (image != NULL) {
+			cvLine(image, cvPoint (scale*dst_corners[0].x, scale*dst_corners[0].y), 
+				cvPoint (scale*dst_corners[1].x, scale*dst_corners[1].y), cvScalar(0,255,255), 12);
+			cvLine(image, cvPoint (scale*dst_corners[1].x, scale*dst_corners[1].y), 
+				cvPoint (scale*dst_corners[2].x, scale*dst_corners[2].y), cvScalar(0,255,255), 12);
+			cvLine(image, cvPoint (scale*dst_corners[2].x, scale*dst_corners[2].y), 
+				cvPoint (scale*dst_corners[3].x, scale*dst_corners[3].y), cvScalar(0,255,255), 12);
+			cvLine(image, cvPoint (scale*dst_corners[3].x, scale*dst_corners[3].y), 
+				cvPoint (scale*dst_corners[0].x, scale*dst_corners[0].y), cvScalar(0,255,255), 12);
+			cvCircle(image, cvPoint(pos[i].x, pos[i].y), 7, cvScalar(0,255,255), 15);
+		}
 		
 	}
 }
 
 
+// Worker mode
+// Find is started once with the argument --worker and then locates the
+// target in one image after another, instead of being started for every
+// image. The target keypoints and the target data are kept between images and
+// the result is sent back directly instead of through imageData.xml.
+// Protocol on stdin/stdout, all integers are 32 bits big-endian:
+// Request: length, then the target, image, target data and output image
+// filenames, each ended by '\0'. The output image may be empty (no preview).
+// A request of length 0 stops the worker.
+// Response: length, then status (1 = found, 0 = not found, -1 = error). If the
+// target is found: upsideDown, the four corners (x, y), the number of patches
+// and the center of each patch (x, y).
+// When it starts, the worker sends WORKER_MAGIC and WORKER_VERSION.
+// Everything that is printed goes to stderr.
+
+#define WORKER_MAGIC 0x46494E44
+#define WORKER_VERSION 1
+#define MAX_REQUEST 65536
+
+// The responses are written to the original stdout, stdout is redirected to
+// stderr so that what is printed doesn't mix with the responses
+FILE* openResponseStream()
+{
+	int fd = _dup(1);
+	if (fd == -1 || _dup2(2, 1) == -1)
+		return NULL;
+	_setmode(fd, _O_BINARY);
+	_setmode(_fileno(stdin), _O_BINARY);
+	return _fdopen(fd, "wb");
+}
+
+struct TargetData {
+	int numPatches;
+	int xSize, ySize;
+	double patchPos[512][2];
+};
+
+struct TargetKeypoints {
+	CvMemStorage* storage;
+	CvSeq* keypoints;
+	CvSeq* descriptors;
+	int width, height;
+};
+
+map<string, TargetData*> targetDataCache;
+map<string, CvSize> targetSizeCache;
+map<string, TargetKeypoints*> targetKeypointsCache;
+
+// The number of times the images are reduced, the same as the two loops in main
+int numberOfReductions(int objectWidth, int objectHeight, int imageWidth, int imageHeight)
+{
+	int numberOfTimesReduced = 0;
+	int treshold = 10000;
+	while (objectWidth > treshold || objectHeight > treshold ||
+		   imageWidth > treshold || imageHeight > treshold) {
+		objectWidth /= 2; objectHeight /= 2;
+		imageWidth /= 2; imageHeight /= 2;
+		numberOfTimesReduced++;
+	}
+	return numberOfTimesReduced;
+}
+
+int scaleOfReductions(int numberOfTimesReduced)
+{
+	int scale = (int) pow((double)numberOfTimesReduced,2);
+	if (numberOfTimesReduced == 0)
+		scale = 1;
+	else if (numberOfTimesReduced == 1)
+		scale = 2;
+	return scale;
+}
+
+TargetData* getTargetData(const string& filename)
+{
+	map<string, TargetData*>::iterator it = targetDataCache.find(filename);
+	if (it != targetDataCache.end())
+		return it->second;
+
+	xmlDocPtr doc = getDoc(const_cast <char*> (filename.c_str()));
+	if (doc == NULL)
+		return NULL;
+	TargetData* data = new TargetData();
+	data->numPatches = getNumberOfPatches(doc, (xmlChar*) "/targetData/generalData/numberOfPatches");
+	if (data->numPatches < 0 || data->numPatches > 512) {
+		printf("Too many patches: %d\n", data->numPatches);
+		xmlFreeDoc(doc);
+		delete data;
+		return NULL;
+	}
+	getPatchPosition(doc, data->numPatches, data->patchPos,
+					 (xmlChar*) "/targetData/patches/patch/relativeCenter/X",
+					 (xmlChar*) "/targetData/patches/patch/relativeCenter/Y");
+	data->xSize = 0;
+	data->ySize = 0;
+	getTargetSize(doc, data->xSize, data->ySize,
+				  (xmlChar*) "/targetData/generalData/size/sizeInPixels/X",
+				  (xmlChar*) "/targetData/generalData/size/sizeInPixels/Y");
+	xmlFreeDoc(doc);
+	targetDataCache[filename] = data;
+	return data;
+}
+
+// The keypoints of the target, reduced the given number of times
+TargetKeypoints* getTargetKeypoints(const string& filename, int numberOfTimesReduced)
+{
+	char reductions[20];
+	sprintf(reductions, "|%d", numberOfTimesReduced);
+	string key = filename + reductions;
+	map<string, TargetKeypoints*>::iterator it = targetKeypointsCache.find(key);
+	if (it != targetKeypointsCache.end())
+		return it->second;
+
+	IplImage* object = cvLoadImage(filename.c_str(), CV_LOAD_IMAGE_GRAYSCALE);
+	if (object == NULL)
+		return NULL;
+	for (int i = 0; i < numberOfTimesReduced; i++) {
+		IplImage* reduced = doPyrDown(object, IPL_GAUSSIAN_5x5);
+		cvReleaseImage(&object);
+		object = reduced;
+	}
+	TargetKeypoints* target = new TargetKeypoints();
+	target->storage = cvCreateMemStorage(0);
+	target->keypoints = 0;
+	target->descriptors = 0;
+	cvExtractSURF(object, 0, &target->keypoints, &target->descriptors, target->storage,
+				  cvSURFParams(500, 1));
+	printf("Object Descriptors: %d\n", target->descriptors->total);
+	target->width = object->width;
+	target->height = object->height;
+	cvReleaseImage(&object);
+	targetKeypointsCache[key] = target;
+	return target;
+}
+
+CvSize getObjectSize(const string& filename)
+{
+	map<string, CvSize>::iterator it = targetSizeCache.find(filename);
+	if (it != targetSizeCache.end())
+		return it->second;
+	IplImage* object = cvLoadImage(filename.c_str(), CV_LOAD_IMAGE_GRAYSCALE);
+	if (object == NULL)
+		return cvSize(0, 0);
+	CvSize size = cvGetSize(object);
+	cvReleaseImage(&object);
+	targetSizeCache[filename] = size;
+	return size;
+}
+
+// Locate the target in one image, the result is added to response
+void locateInWorker(const string& object_filename, const string& scene_filename,
+					const string& data_filename, const string& output, vector<int>& response)
+{
+	printf("Image file: %s\n", scene_filename.c_str());
+	TargetData* data = getTargetData(data_filename);
+	CvSize objectSize = getObjectSize(object_filename);
+	IplImage* image = cvLoadImage(scene_filename.c_str(), CV_LOAD_IMAGE_GRAYSCALE);
+	if (data == NULL || objectSize.width == 0 || image == NULL) {
+		printf("Error loading the target, target data or image\n");
+		if (image != NULL)
+			cvReleaseImage(&image);
+		response.push_back(-1);
+		return;
+	}
+
+	int numberOfTimesReduced = numberOfReductions(objectSize.width, objectSize.height,
+												  image->width, image->height);
+	int scale = scaleOfReductions(numberOfTimesReduced);
+	TargetKeypoints* target = getTargetKeypoints(object_filename, numberOfTimesReduced);
+	if (target == NULL) {
+		cvReleaseImage(&image);
+		response.push_back(-1);
+		return;
+	}
+	for (int i = 0; i < numberOfTimesReduced; i++) {
+		IplImage* reduced = doPyrDown(image, IPL_GAUSSIAN_5x5);
+		cvReleaseImage(&image);
+		image = reduced;
+	}
+
+	// The keypoints of the image are freed with the storage
+	CvMemStorage* storage = cvCreateMemStorage(0);
+	CvPoint dst_corners[4];
+	int found = matchKeypoints(image, target->keypoints, target->descriptors, target->width,
+							   target->height, storage, dst_corners);
+	cvReleaseMemStorage(&storage);
+	cvReleaseImage(&image);
+	if (found == -1) {
+		response.push_back(0);
+		return;
+	}
+
+	int upsideDown = orientation(dst_corners);
+	double angle = (atan ((double)(dst_corners[1].y-dst_corners[0].y)/(double)(dst_corners[1].x-dst_corners[0].x)));
+	printf("Angle (r): %f, angle: %f\n", angle, 360*angle/(2*3.1415));
+
+	// The preview is only drawn if it's wanted, it needs the image in color
+	IplImage* preview = NULL;
+	if (!output.empty())
+		preview = cvLoadImage(scene_filename.c_str(), CV_LOAD_IMAGE_COLOR);
+	CvPoint pos[512];
+	computePatches(dst_corners, data->patchPos, pos, data->numPatches, angle, scale, upsideDown,
+				   data->xSize, data->ySize, preview);
+	if (preview != NULL) {
+		for (int i = 0; i < 3; i++) {
+			IplImage* reduced = doPyrDown(preview, IPL_GAUSSIAN_5x5);
+			cvReleaseImage(&preview);
+			preview = reduced;
+		}
+		if(!cvSaveImage(output.c_str(), preview))
+			printf("Could not save output image\n");
+		cvReleaseImage(&preview);
+	}
+
+	response.push_back(1);
+	response.push_back(upsideDown);
+	for (int i = 0; i < 4; i++) {
+		response.push_back(scale*dst_corners[i].x);
+		response.push_back(scale*dst_corners[i].y);
+	}
+	response.push_back(data->numPatches);
+	for (int i = 0; i < data->numPatches; i++) {
+		response.push_back(pos[i].x);
+		response.push_back(pos[i].y);
+	}
+}
+
+// Read a 32-bit big-endian integer. Returns 0 at the end of the input.
+int readInt(FILE* in, int& value)
+{
+	unsigned char b[4];
+	if (fread(b, 1, 4, in) != 4)
+		return 0;
+	value = (int) (((unsigned int) b[0] << 24) | (b[1] << 16) | (b[2] << 8) | b[3]);
+	return 1;
+}
+
+void writeFrame(FILE* out, const vector<int>& values)
+{
+	vector<unsigned char> buffer(4 + 4*values.size());
+	unsigned int length = (unsigned int) (4*values.size());
+	for (size_t i = 0; i <= values.size(); i++) {
+		unsigned int value = i == 0 ? length : (unsigned int) values[i - 1];
+		buffer[4*i] = (unsigned char) (value >> 24);
+		buffer[4*i + 1] = (unsigned char) (value >> 16);
+		buffer[4*i + 2] = (unsigned char) (value >> 8);
+		buffer[4*i + 3] = (unsigned char) value;
+	}
+	fwrite(&buffer[0], 1, buffer.size(), out);
+	fflush(out);
+}
+
+int runWorker()
+{
+	FILE* out = openResponseStream();
+	if (out == NULL)
+		return -1;
+	vector<int> response;
+	response.push_back(WORKER_MAGIC);
+	response.push_back(WORKER_VERSION);
+	writeFrame(out, response);
+
+	int length;
+	while (readInt(stdin, length) && length > 0 && length <= MAX_REQUEST) {
+		vector<char> request(length);
+		if (fread(&request[0], 1, length, stdin) != (size_t) length)
+			break;
+		// Four filenames, each ended by '\0'
+		vector<string> fields;
+		size_t start = 0;
+		for (size_t i = 0; i < request.size(); i++) {
+			if (request[i] == 0) {
+				fields.push_back(string(&request[start], i - start));
+				start = i + 1;
+			}
+		}
+		response.clear();
+		if (fields.size() != 4) {
+			printf("Malformed request\n");
+			response.push_back(-1);
+		}
+		else
+			locateInWorker(fields[0], fields[1], fields[2], fields[3], response);
+		writeFrame(out, response);
+		fflush(stdout);
+	}
+	fclose(out);
+	xmlCleanupParser();
+	return 0;
+}
+
 int main(int argc, char** argv){
 
+	if (argc == 2 && strcmp(argv[1], "--worker") == 0)
+		return runWorker();
+
 	printf("*********************************\n");
 	printf("Find output:\n");
 	printf("Num args: %d\n", argc);
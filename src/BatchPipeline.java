@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Measures the images of a batch in a pipeline of stages, e.g. decode, locate,
+// measure and write. Each stage has its own threads and the stages are
+// connected by bounded queues, so that one image is decoded while the target
+// is located in the previous one and the result of the one before is
+// written. The queues also limit the number of decoded images in memory, and
+// submit() waits while the first stage is full. An image that fails in a stage
+// skips the rest of the stages, the error is kept in its item. This includes
+// errors such as OutOfMemoryError and exceptions thrown by the Listener, so
+// that a thread of a stage never stops before all images are done.
+public class BatchPipeline {
+
+	public interface Stage {
+		void run(Item item) throws Exception;
+	}
+
+	// Told when an image is started and when it's done or has failed. Called
+	// from the threads of the stages.
+	public interface Listener {
+		void started(Item item);
+		void finished(Item item);
+	}
+
+	// An image on its way through the pipeline. The stages keep what they
+	// pass on to the next stage in the item.
+	public static class Item {
+		private File image;
+		private File scratch;
+		private Measure measure;
+		private byte[] resultKey;
+		private boolean measured;
+		private Throwable error;
+
+		private Item(File image, File scratch) {
+			this.image = image;
+			this.scratch = scratch;
+		}
+
+		public File getImage() {
+			return image;
+		}
+
+		// A directory of its own for temporary files
+		public String getScratchDir() throws IOException {
+			if (!scratch.isDirectory() && !scratch.mkdirs())
+				throw new IOException("Could not create " + scratch);
+			return scratch.getPath();
+		}
+
+		public Measure getMeasure() {
+			return measure;
+		}
+
+		public void setMeasure(Measure measure) {
+			this.measure = measure;
+		}
+
+		// The key of the image in the ResultCache
+		public byte[] getResultKey() {
+			return resultKey;
+		}
+
+		public void setResultKey(byte[] resultKey) {
+			this.resultKey = resultKey;
+		}
+
+		// True if the measurement is already done, e.g. found in the
+		// ResultCache, the following stages then only write the result
+		public boolean isMeasured() {
+			return measured;
+		}
+
+		public void setMeasured(boolean measured) {
+			this.measured = measured;
+		}
+
+		// The error of the image, null if it was measured
+		public Throwable getError() {
+			return error;
+		}
+	}
+
+	// Marks the end of the images in a queue, one per thread of the stage
+	private static final Item END = new Item(null, null);
+
+	private List<String> names = new ArrayList<String>();
+	private List<Stage> stages = new ArrayList<Stage>();
+	private List<Integer> threads = new ArrayList<Integer>();
+	private Listener listener;
+
+	private File scratch;
+	private List<BlockingQueue<Item>> queues;
+	private List<Thread> workers;
+	private AtomicInteger[] running;
+	private AtomicInteger done;
+	private AtomicInteger failed;
+	private int submitted;
+
+	public void addStage(String name, int threads, Stage stage) {
+		names.add(name);
+		stages.add(stage);
+		this.threads.add(Math.max(1, threads));
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// Start the threads of the stages, the images are then given with submit()
+	public void start() throws IOException {
+		scratch = Files.createTempDirectory("colorite").toFile();
+		final int n = stages.size();
+		StringBuilder description = new StringBuilder();
+		for (int s = 0; s < n; s++)
+			description.append(s == 0 ? "" : ", ").append(names.get(s)).append(" ")
+				.append(threads.get(s));
+		System.out.println("Measuring in stages: " + description);
+
+		// Queue s is the input of stage s, it holds as many images as the
+		// stage has threads
+		queues = new ArrayList<BlockingQueue<Item>>();
+		for (int s = 0; s < n; s++)
+			queues.add(new ArrayBlockingQueue<Item>(threads.get(s)));
+		running = new AtomicInteger[n];
+		done = new AtomicInteger();
+		failed = new AtomicInteger();
+		submitted = 0;
+
+		workers = new ArrayList<Thread>();
+		for (int s = 0; s < n; s++) {
+			running[s] = new AtomicInteger(threads.get(s));
+			for (int t = 0; t < threads.get(s); t++) {
+				final int stage = s;
+				Thread worker = new Thread(names.get(s) + "-" + (t + 1)) {
+					public void run() {
+						try {
+							Item item;
+							while ((item = queues.get(stage).take()) != END) {
+								try {
+									if (stage == 0 && listener != null)
+										listener.started(item);
+									if (item.error == null)
+										stages.get(stage).run(item);
+								}
+								catch (Throwable e) {
+									if (item.error == null)
+										item.error = e;
+								}
+								if (stage == n - 1 || item.error != null)
+									finish(item);
+								else
+									queues.get(stage + 1).put(item);
+							}
+						}
+						catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+						finally {
+							// The last thread of a stage ends the next stage
+							if (running[stage].decrementAndGet() == 0 && stage < n - 1)
+								end(stage + 1);
+						}
+					}
+				};
+				worker.start();
+				workers.add(worker);
+			}
+		}
+	}
+
+	// Give an image to the first stage. Waits while the first stage is full.
+	public Item submit(File image) throws InterruptedException {
+		Item item = new Item(image, new File(scratch, "job" + submitted++));
+		queues.get(0).put(item);
+		return item;
+	}
+
+	// Wait until the images that have been submitted are done
+	public void finish() {
+		try {
+			for (int t = 0; t < threads.get(0); t++)
+				queues.get(0).put(END);
+			for (Thread worker : workers)
+				worker.join();
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		finally {
+			delete(scratch);
+		}
+		System.out.println(done.get() + " images measured, " + failed.get() + " failed");
+	}
+
+	private void end(int stage) {
+		try {
+			for (int i = 0; i < threads.get(stage); i++)
+				queues.get(stage).put(END);
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// The measure (and the decoded image in it) isn't needed any more
+	private void finish(Item item) {
+		delete(item.scratch);
+		item.measure = null;
+		item.resultKey = null;
+		if (item.error == null)
+			System.out.println("Done: " + item.image + " (" + done.incrementAndGet() + ")");
+		else {
+			failed.incrementAndGet();
+			System.out.println("Failed: " + item.image + ": " + item.error);
+		}
+		if (listener != null) {
+			try {
+				listener.finished(item);
+			}
+			catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+}
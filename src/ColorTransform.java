@@ -0,0 +1,142 @@
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Converts sampled pixels from LAB (or an ICC profile) to the color space of an
+// ICC profile. The conversion through the color management module is far too
+// slow to be done for each pixel, so it's evaluated once on a 3D grid and the
+// pixels are converted by trilinear interpolation in that table. The tables are
+// cached per pair of profiles and reused for every image in a batch.
+public class ColorTransform {
+
+	// Number of grid points along each axis
+	private static final int GRID = 33;
+
+	// D50, the white point of the profile connection space
+	private static final double XN = 0.9642;
+	private static final double YN = 1.0;
+	private static final double ZN = 0.8249;
+
+	private static ConcurrentHashMap<String, ColorTransform> cache =
+		new ConcurrentHashMap<String, ColorTransform>();
+
+	private boolean labSource;
+	private float[] table;
+
+	private ColorTransform(ICC_ColorSpace source, ICC_ColorSpace destination) {
+		labSource = (source == null);
+		table = new float[GRID*GRID*GRID*3];
+		float[] in = new float[3];
+		float[] xyz = new float[3];
+		int n = 0;
+		for (int i = 0; i < GRID; i++) {
+			for (int j = 0; j < GRID; j++) {
+				for (int k = 0; k < GRID; k++) {
+					if (labSource) {
+						labToXYZ(minimum(0) + i*step(0), minimum(1) + j*step(1),
+								minimum(2) + k*step(2), xyz);
+					}
+					else {
+						in[0] = (float) i/(GRID - 1);
+						in[1] = (float) j/(GRID - 1);
+						in[2] = (float) k/(GRID - 1);
+						xyz = source.toCIEXYZ(in);
+					}
+					float[] out = destination.fromCIEXYZ(xyz);
+					table[n++] = out[0];
+					table[n++] = out[1];
+					table[n++] = out[2];
+				}
+			}
+		}
+	}
+
+	// Transform from LAB (D50) to the space of the destination profile. A null
+	// profile or a profile that doesn't exist means the built-in sRGB profile.
+	public static ColorTransform getLabTransform(String destinationProfile)
+		throws IOException {
+		return getTransform(null, destinationProfile);
+	}
+
+	// Transform between two profiles, a null source profile means LAB
+	public static ColorTransform getTransform(String sourceProfile,
+			String destinationProfile) throws IOException {
+		String key = sourceProfile + "|" + destinationProfile;
+		ColorTransform transform = cache.get(key);
+		if (transform == null) {
+			ICC_ColorSpace source = null;
+			if (sourceProfile != null)
+				source = new ICC_ColorSpace(loadProfile(sourceProfile));
+			ICC_ColorSpace destination = new ICC_ColorSpace(loadProfile(destinationProfile));
+			transform = new ColorTransform(source, destination);
+			ColorTransform previous = cache.putIfAbsent(key, transform);
+			if (previous != null)
+				transform = previous;
+		}
+		return transform;
+	}
+
+	private static ICC_Profile loadProfile(String filename) throws IOException {
+		if (filename == null || !new File(filename).exists())
+			return ICC_Profile.getInstance(ColorSpace.CS_sRGB);
+		return ICC_Profile.getInstance(filename);
+	}
+
+	// Convert one pixel. For LAB the input is L (0-100), a and b (-128-127),
+	// otherwise the components are in the range 0-1. The output is in the
+	// range 0-1.
+	public void transform(double[] in, double[] out) {
+		double[] pos = new double[3];
+		int[] index = new int[3];
+		for (int c = 0; c < 3; c++) {
+			double v;
+			if (labSource)
+				v = (in[c] - minimum(c))/step(c);
+			else
+				v = in[c]*(GRID - 1);
+			v = Math.max(0, Math.min(GRID - 1, v));
+			index[c] = Math.min((int) v, GRID - 2);
+			pos[c] = v - index[c];
+		}
+		for (int c = 0; c < 3; c++) {
+			double sum = 0;
+			for (int corner = 0; corner < 8; corner++) {
+				int di = (corner >> 2) & 1, dj = (corner >> 1) & 1, dk = corner & 1;
+				double weight = (di == 1 ? pos[0] : 1 - pos[0])*
+					(dj == 1 ? pos[1] : 1 - pos[1])*(dk == 1 ? pos[2] : 1 - pos[2]);
+				int node = ((index[0] + di)*GRID + index[1] + dj)*GRID + index[2] + dk;
+				sum += weight*table[3*node + c];
+			}
+			out[c] = sum;
+		}
+	}
+
+	// Grid limits for the LAB channels
+	private static double minimum(int c) {
+		return c == 0 ? 0 : -128;
+	}
+
+	private static double step(int c) {
+		return (c == 0 ? 100.0 : 255.0)/(GRID - 1);
+	}
+
+	// Colors outside the spectrum locus give negative values, they are clipped
+	// since the color management module can't handle them
+	private static void labToXYZ(double l, double a, double b, float[] xyz) {
+		double fy = (l + 16)/116;
+		double fx = fy + a/500;
+		double fz = fy - b/200;
+		xyz[0] = (float) Math.max(0, XN*inverse(fx));
+		xyz[1] = (float) Math.max(0, YN*inverse(fy));
+		xyz[2] = (float) Math.max(0, ZN*inverse(fz));
+	}
+
+	private static double inverse(double t) {
+		if (t > 6.0/29)
+			return t*t*t;
+		return 3*Math.pow(6.0/29, 2)*(t - 4.0/29);
+	}
+}
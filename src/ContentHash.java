@@ -0,0 +1,58 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+// A fast hash of the contents of a large file, e.g. an image. The file is
+// memory-mapped in chunks and each chunk gets two checksums (CRC32C and CRC32,
+// which use the processor's CRC instructions), so the file is read at the
+// speed of the disk instead of the speed of SHA-256. The hash is the SHA-256
+// of the length and the checksums of all chunks.
+public class ContentHash {
+
+	private static final int CHUNK = 4 << 20;
+
+	public static byte[] hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer sums = ByteBuffer.allocate(8 + 8);
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			sums.putLong(length);
+			digest.update(sums.array(), 0, 8);
+			CRC32C crc32c = new CRC32C();
+			CRC32 crc32 = new CRC32();
+			for (long position = 0; position < length; position += CHUNK) {
+				MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(CHUNK, length - position));
+				crc32c.reset();
+				crc32c.update(chunk);
+				chunk.rewind();
+				crc32.reset();
+				crc32.update(chunk);
+				sums.clear();
+				sums.putLong(crc32c.getValue());
+				sums.putLong(crc32.getValue());
+				digest.update(sums.array());
+			}
+		}
+		finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+}
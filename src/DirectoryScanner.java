@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+// Finds the images in a directory and its subdirectories. The images are
+// given to the visitor one at a time while the tree is walked, so the tree is
+// never listed in memory. With shards, the images are split between several
+// machines (e.g. --shard 2/4 is the second of four). An image belongs to a
+// shard by the hash of its path relative to the directory, so the machines
+// can mount the tree in different places and no coordination is needed.
+public class DirectoryScanner {
+
+	public interface Visitor {
+		void visit(File image) throws InterruptedException, IOException;
+	}
+
+	// From 0 to shards - 1
+	private int shard;
+	private int shards;
+
+	public DirectoryScanner() {
+		this(0, 1);
+	}
+
+	public DirectoryScanner(int shard, int shards) {
+		if (shards < 1 || shard < 0 || shard >= shards)
+			throw new IllegalArgumentException("Invalid shard " + (shard + 1) + "/" + shards);
+		this.shard = shard;
+		this.shards = shards;
+	}
+
+	// Parse "k/N" where k is from 1 to N
+	public static DirectoryScanner forShard(String shard) {
+		int slash = shard.indexOf('/');
+		if (slash < 0)
+			throw new IllegalArgumentException("Invalid shard " + shard + ", use k/N");
+		return new DirectoryScanner(Integer.parseInt(shard.substring(0, slash).trim()) - 1,
+				Integer.parseInt(shard.substring(slash + 1).trim()));
+	}
+
+	// Returns the number of images that were given to the visitor. Stops if
+	// the thread is interrupted or the visitor throws an IOException.
+	public int scan(File directory, final Visitor visitor) throws IOException {
+		final Path root = directory.toPath();
+		final int[] count = {0};
+		if (shards > 1)
+			System.out.println("Scanning " + directory + ", shard " + (shard + 1) + "/" + shards);
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) 
+					throws IOException {
+				File file = path.toFile();
+				if (!attributes.isRegularFile() || !Setup.isBatchImage(file) ||
+						!inShard(root.relativize(path)))
+					return FileVisitResult.CONTINUE;
+				try {
+					visitor.visit(file);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return FileVisitResult.TERMINATE;
+				}
+				count[0]++;
+				return FileVisitResult.CONTINUE;
+			}
+
+			// An unreadable directory doesn't stop the batch
+			public FileVisitResult visitFileFailed(Path path, IOException e) {
+				System.out.println("Unable to read " + path + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return count[0];
+	}
+
+	// Added to the names of the files of a shard, e.g. "-2of4"
+	public String getShardSuffix() {
+		return shards == 1 ? "" : "-" + (shard + 1) + "of" + shards;
+	}
+
+	// The same relative path gives the same shard on every machine, whatever
+	// the file separator is
+	public boolean inShard(Path relative) {
+		if (shards == 1)
+			return true;
+		StringBuilder name = new StringBuilder();
+		for (Path part : relative) {
+			if (name.length() > 0)
+				name.append('/');
+			name.append(part.toString());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(name.toString().getBytes(StandardCharsets.UTF_8));
+		return crc.getValue() % shards == shard;
+	}
+}
@@ -0,0 +1,287 @@
+import java.util.Arrays;
+
+// Finds scale and rotation invariant keypoints in a grayscale image and
+// computes a 64-element descriptor for each of them. This is the same method
+// as the SURF-extraction (cvExtractSURF) used by Find: the determinant of the
+// Hessian is approximated with box filters on an integral image, maxima are
+// found in scale-space and the descriptor is built from Haar wavelet responses
+// oriented along the dominant direction around each keypoint.
+public class FeatureExtractor {
+
+	private static final int OCTAVES = 4;
+	private static final int INTERVALS = 4;
+	private static final int INIT_SAMPLE = 2;
+	private static final float THRESHOLD = 0.0002f;
+	// Only the strongest keypoints are kept
+	private static final int MAX_FEATURES = 3000;
+
+	private double[] integral;
+	private int width;
+	private int height;
+
+	// The gray values should be in the range 0-1
+	private FeatureExtractor(float[] gray, int width, int height) {
+		this.width = width;
+		this.height = height;
+		integral = new double[width*height];
+		for (int row = 0; row < height; row++) {
+			double sum = 0;
+			for (int col = 0; col < width; col++) {
+				sum += gray[row*width + col];
+				integral[row*width + col] = sum + (row > 0 ? integral[(row - 1)*width + col] : 0);
+			}
+		}
+	}
+
+	public static Features extract(float[] gray, int width, int height) {
+		FeatureExtractor extractor = new FeatureExtractor(gray, width, height);
+		return extractor.extract();
+	}
+
+	private Features extract() {
+		// Candidates: x, y, scale, laplacian and response
+		float[] candidates = new float[5*1024];
+		int count = 0;
+
+		for (int o = 0; o < OCTAVES; o++) {
+			int step = INIT_SAMPLE << o;
+			int layerWidth = width/step;
+			int layerHeight = height/step;
+			if (layerWidth < 3 || layerHeight < 3)
+				break;
+			int[] filter = new int[INTERVALS];
+			float[][] responses = new float[INTERVALS][];
+			boolean[][] laplacians = new boolean[INTERVALS][];
+			for (int i = 0; i < INTERVALS; i++) {
+				filter[i] = 3*((1 << (o + 1))*(i + 1) + 1);
+				responses[i] = new float[layerWidth*layerHeight];
+				laplacians[i] = new boolean[layerWidth*layerHeight];
+				buildResponseLayer(step, filter[i], layerWidth, layerHeight,
+						responses[i], laplacians[i]);
+			}
+
+			for (int m = 1; m < INTERVALS - 1; m++) {
+				float[] b = responses[m - 1], mid = responses[m], t = responses[m + 1];
+				int border = (filter[m + 1] + 1)/(2*step) + 1;
+				for (int r = border; r < layerHeight - border; r++) {
+					for (int c = border; c < layerWidth - border; c++) {
+						float candidate = mid[r*layerWidth + c];
+						if (candidate < THRESHOLD || !isMaximum(candidate, r, c, layerWidth, b, mid, t))
+							continue;
+						float[] point = interpolate(r, c, layerWidth, step, filter[m - 1],
+								filter[m], b, mid, t);
+						if (point == null)
+							continue;
+						if (5*(count + 1) > candidates.length)
+							candidates = Arrays.copyOf(candidates, 2*candidates.length);
+						candidates[5*count] = point[0];
+						candidates[5*count + 1] = point[1];
+						candidates[5*count + 2] = point[2];
+						candidates[5*count + 3] = laplacians[m][r*layerWidth + c] ? 1 : 0;
+						candidates[5*count + 4] = candidate;
+						count++;
+					}
+				}
+			}
+		}
+
+		// Keep the strongest responses
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		final float[] sorted = candidates;
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Float.compare(sorted[5*b + 4], sorted[5*a + 4]);
+			}
+		});
+		int kept = Math.min(count, MAX_FEATURES);
+		Features features = new Features(width, height, kept);
+		for (int n = 0; n < kept; n++) {
+			int i = order[n];
+			int index = features.add(candidates[5*i], candidates[5*i + 1],
+					candidates[5*i + 2], candidates[5*i + 3] != 0);
+			features.setOrientation(index, orientation(features.getX(index),
+					features.getY(index), features.getScale(index)));
+			describe(features, index);
+		}
+		return features;
+	}
+
+	private void buildResponseLayer(int step, int filter, int layerWidth, int layerHeight,
+			float[] responses, boolean[] laplacians) {
+		int b = (filter - 1)/2;
+		int l = filter/3;
+		double inverseArea = 1.0/(filter*filter);
+		for (int ar = 0; ar < layerHeight; ar++) {
+			for (int ac = 0; ac < layerWidth; ac++) {
+				int r = ar*step;
+				int c = ac*step;
+				double dxx = boxIntegral(r - l + 1, c - b, 2*l - 1, filter) -
+					3*boxIntegral(r - l + 1, c - l/2, 2*l - 1, l);
+				double dyy = boxIntegral(r - b, c - l + 1, filter, 2*l - 1) -
+					3*boxIntegral(r - l/2, c - l + 1, l, 2*l - 1);
+				double dxy = boxIntegral(r - l, c + 1, l, l) + boxIntegral(r + 1, c - l, l, l) -
+					boxIntegral(r - l, c - l, l, l) - boxIntegral(r + 1, c + 1, l, l);
+				dxx *= inverseArea;
+				dyy *= inverseArea;
+				dxy *= inverseArea;
+				responses[ar*layerWidth + ac] = (float) (dxx*dyy - 0.81*dxy*dxy);
+				laplacians[ar*layerWidth + ac] = (dxx + dyy >= 0);
+			}
+		}
+	}
+
+	// Check the 26 neighbours in scale-space
+	private static boolean isMaximum(float candidate, int r, int c, int w,
+			float[] b, float[] m, float[] t) {
+		for (int rr = -1; rr <= 1; rr++) {
+			for (int cc = -1; cc <= 1; cc++) {
+				int i = (r + rr)*w + c + cc;
+				if (t[i] >= candidate || b[i] >= candidate ||
+						((rr != 0 || cc != 0) && m[i] >= candidate))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// Fit a quadratic to the neighbourhood to find the position of the maximum
+	// with sub-pixel accuracy. Returns x, y and scale, or null if the maximum
+	// is too far from the sample point.
+	private static float[] interpolate(int r, int c, int w, int step, int filterBelow,
+			int filter, float[] b, float[] m, float[] t) {
+		int i = r*w + c;
+		double v = m[i];
+		double dx = (m[i + 1] - m[i - 1])/2.0;
+		double dy = (m[i + w] - m[i - w])/2.0;
+		double ds = (t[i] - b[i])/2.0;
+		double dxx = m[i + 1] + m[i - 1] - 2*v;
+		double dyy = m[i + w] + m[i - w] - 2*v;
+		double dss = t[i] + b[i] - 2*v;
+		double dxy = (m[i + w + 1] - m[i + w - 1] - m[i - w + 1] + m[i - w - 1])/4.0;
+		double dxs = (t[i + 1] - t[i - 1] - b[i + 1] + b[i - 1])/4.0;
+		double dys = (t[i + w] - t[i - w] - b[i + w] + b[i - w])/4.0;
+
+		double[][] h = {{dxx, dxy, dxs}, {dxy, dyy, dys}, {dxs, dys, dss}};
+		double[] offset = Homography.solve(h, new double[] {-dx, -dy, -ds});
+		if (offset == null || Math.abs(offset[0]) >= 0.5 ||
+				Math.abs(offset[1]) >= 0.5 || Math.abs(offset[2]) >= 0.5)
+			return null;
+		float x = (float) ((c + offset[0])*step);
+		float y = (float) ((r + offset[1])*step);
+		float scale = (float) (0.1333*(filter + offset[2]*(filter - filterBelow)));
+		return new float[] {x, y, scale};
+	}
+
+	// The dominant direction of the Haar responses in a circle around the point
+	private float orientation(float x, float y, float scale) {
+		int s = Math.max(1, Math.round(scale));
+		int r = Math.round(y);
+		int c = Math.round(x);
+		double[] resX = new double[109];
+		double[] resY = new double[109];
+		double[] angle = new double[109];
+		int n = 0;
+		for (int i = -6; i <= 6; i++) {
+			for (int j = -6; j <= 6; j++) {
+				if (i*i + j*j >= 36)
+					continue;
+				double gauss = Math.exp(-(i*i + j*j)/(2*2.5*2.5));
+				resX[n] = gauss*haarX(r + j*s, c + i*s, 4*s);
+				resY[n] = gauss*haarY(r + j*s, c + i*s, 4*s);
+				angle[n] = Math.atan2(resY[n], resX[n]);
+				n++;
+			}
+		}
+
+		// Slide a window of size pi/3 around the circle
+		double max = 0, best = 0;
+		for (double start = -Math.PI; start < Math.PI; start += 0.15) {
+			double sumX = 0, sumY = 0;
+			for (int k = 0; k < n; k++) {
+				double diff = angle[k] - start;
+				if (diff < 0)
+					diff += 2*Math.PI;
+				if (diff < Math.PI/3) {
+					sumX += resX[k];
+					sumY += resY[k];
+				}
+			}
+			if (sumX*sumX + sumY*sumY > max) {
+				max = sumX*sumX + sumY*sumY;
+				best = Math.atan2(sumY, sumX);
+			}
+		}
+		return (float) best;
+	}
+
+	// 4x4 sub-regions with 5x5 samples each, the samples and the Haar responses
+	// are rotated to the orientation of the keypoint
+	private void describe(Features features, int index) {
+		float x = features.getX(index);
+		float y = features.getY(index);
+		float scale = features.getScale(index);
+		double co = Math.cos(features.getOrientation(index));
+		double si = Math.sin(features.getOrientation(index));
+		int size = 2*Math.max(1, Math.round(scale));
+		float[] descriptors = features.getDescriptors();
+		int base = index*Features.LENGTH;
+		int k = 0;
+		double length = 0;
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++) {
+				double dx = 0, dy = 0, mdx = 0, mdy = 0;
+				for (int a = 0; a < 5; a++) {
+					for (int b = 0; b < 5; b++) {
+						double u = (j*5 + b - 10 + 0.5)*scale;
+						double v = (i*5 + a - 10 + 0.5)*scale;
+						int sampleX = (int) Math.round(x + u*co - v*si);
+						int sampleY = (int) Math.round(y + u*si + v*co);
+						double gauss = Math.exp(-(u*u + v*v)/(2*3.3*3.3*scale*scale));
+						double rx = haarX(sampleY, sampleX, size);
+						double ry = haarY(sampleY, sampleX, size);
+						double ru = gauss*(rx*co + ry*si);
+						double rv = gauss*(-rx*si + ry*co);
+						dx += ru;
+						dy += rv;
+						mdx += Math.abs(ru);
+						mdy += Math.abs(rv);
+					}
+				}
+				descriptors[base + k++] = (float) dx;
+				descriptors[base + k++] = (float) dy;
+				descriptors[base + k++] = (float) mdx;
+				descriptors[base + k++] = (float) mdy;
+				length += dx*dx + dy*dy + mdx*mdx + mdy*mdy;
+			}
+		}
+		length = Math.sqrt(length);
+		if (length > 0) {
+			for (k = 0; k < Features.LENGTH; k++)
+				descriptors[base + k] /= length;
+		}
+	}
+
+	private double haarX(int row, int col, int s) {
+		return boxIntegral(row - s/2, col, s, s/2) - boxIntegral(row - s/2, col - s/2, s, s/2);
+	}
+
+	private double haarY(int row, int col, int s) {
+		return boxIntegral(row, col - s/2, s/2, s) - boxIntegral(row - s/2, col - s/2, s/2, s);
+	}
+
+	// Sum of the area with the upper-left corner in (row, col), clipped to the image
+	private double boxIntegral(int row, int col, int rows, int cols) {
+		int r1 = Math.min(row, height) - 1;
+		int c1 = Math.min(col, width) - 1;
+		int r2 = Math.min(row + rows, height) - 1;
+		int c2 = Math.min(col + cols, width) - 1;
+		double a = 0, b = 0, c = 0, d = 0;
+		if (r1 >= 0 && c1 >= 0) a = integral[r1*width + c1];
+		if (r1 >= 0 && c2 >= 0) b = integral[r1*width + c2];
+		if (r2 >= 0 && c1 >= 0) c = integral[r2*width + c1];
+		if (r2 >= 0 && c2 >= 0) d = integral[r2*width + c2];
+		return Math.max(0, a - b - c + d);
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.Arrays;
+
+// Keypoints and descriptors found by FeatureExtractor. The data is stored in
+// primitive arrays, descriptor i is found at descriptors[i*LENGTH] to
+// descriptors[i*LENGTH + LENGTH - 1].
+public class Features {
+
+	public static final int LENGTH = 64;
+
+	// Size of the image the keypoints belong to
+	private int width;
+	private int height;
+	private int count;
+	private float[] x;
+	private float[] y;
+	private float[] scale;
+	private float[] orientation;
+	private boolean[] laplacian;
+	private float[] descriptors;
+	// The keypoints of the same image reduced twice as much, null if there
+	// are none, see TargetLocator.extractTargetFeatures()
+	private Features reduced;
+
+	public Features(int width, int height, int capacity) {
+		this.width = width;
+		this.height = height;
+		x = new float[capacity];
+		y = new float[capacity];
+		scale = new float[capacity];
+		orientation = new float[capacity];
+		laplacian = new boolean[capacity];
+		descriptors = new float[capacity*LENGTH];
+	}
+
+	// Keypoints read from a file, the arrays are used as they are
+	public Features(int width, int height, int count, float[] x, float[] y, float[] scale,
+			float[] orientation, boolean[] laplacian, float[] descriptors) {
+		this.width = width;
+		this.height = height;
+		this.count = count;
+		this.x = x;
+		this.y = y;
+		this.scale = scale;
+		this.orientation = orientation;
+		this.laplacian = laplacian;
+		this.descriptors = descriptors;
+	}
+
+	// Add a keypoint, returns its index
+	public int add(float px, float py, float s, boolean lap) {
+		if (count == x.length)
+			grow();
+		x[count] = px;
+		y[count] = py;
+		scale[count] = s;
+		laplacian[count] = lap;
+		return count++;
+	}
+
+	// Add the keypoints of another image of the same size
+	public void addAll(Features other) {
+		for (int i = 0; i < other.count; i++) {
+			int index = add(other.x[i], other.y[i], other.scale[i], other.laplacian[i]);
+			orientation[index] = other.orientation[i];
+			System.arraycopy(other.descriptors, i*LENGTH, descriptors, index*LENGTH, LENGTH);
+		}
+	}
+
+	private void grow() {
+		int capacity = Math.max(16, 2*x.length);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		scale = Arrays.copyOf(scale, capacity);
+		orientation = Arrays.copyOf(orientation, capacity);
+		laplacian = Arrays.copyOf(laplacian, capacity);
+		descriptors = Arrays.copyOf(descriptors, capacity*LENGTH);
+	}
+
+	// Convert the keypoints of an image reduced by factor to the coordinates
+	// of the full-size image. x0, y0 is the position of the region the
+	// keypoints were extracted from.
+	public void toFullSize(int factor, int x0, int y0, int fullWidth, int fullHeight) {
+		for (int i = 0; i < count; i++) {
+			x[i] = x0 + x[i]*factor + (factor - 1)/2.0f;
+			y[i] = y0 + y[i]*factor + (factor - 1)/2.0f;
+			scale[i] *= factor;
+		}
+		width = fullWidth;
+		height = fullHeight;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public float getX(int i) {
+		return x[i];
+	}
+
+	public float getY(int i) {
+		return y[i];
+	}
+
+	public float getScale(int i) {
+		return scale[i];
+	}
+
+	public float getOrientation(int i) {
+		return orientation[i];
+	}
+
+	public void setOrientation(int i, float o) {
+		orientation[i] = o;
+	}
+
+	public boolean getLaplacian(int i) {
+		return laplacian[i];
+	}
+
+	public float[] getDescriptors() {
+		return descriptors;
+	}
+
+	public Features getReduced() {
+		return reduced;
+	}
+
+	public void setReduced(Features reduced) {
+		this.reduced = reduced;
+	}
+}
@@ -2,5 +2,9 @@
 public class FindException extends Exception {
 	public FindException() {
 		super("Find unable to open image");
-	}	
+	}
+
+	public FindException(String message) {
+		super(message);
+	}
 }
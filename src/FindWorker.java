@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps Find running between images (Find --worker) instead of starting it for
+// every image. Find then initialises OpenCV, extracts the keypoints of the
+// target and reads the target data once, and the location of the target is
+// sent back directly instead of through imageData.xml. The protocol is
+// described in find.cpp. Versions of Find without the worker mode are detected
+// when the worker starts, they are still run once per image. A request is
+// counted against ProcessRunner.MAX_PROCESSES, and a worker that doesn't reply
+// in time is stopped.
+public class FindWorker {
+
+	private static final int MAGIC = 0x46494E44;
+	private static final int VERSION = 1;
+	// The worker replies as soon as it has started. A Find that doesn't is
+	// treated as one without the worker mode.
+	private static final long START_TIMEOUT = 30*1000;
+
+	// One worker per Find executable
+	private static HashMap<String, FindWorker> workers = new HashMap<String, FindWorker>();
+	private static HashSet<String> unsupported = new HashSet<String>();
+	private static boolean shutdownHook = false;
+
+	// The replies are read by these threads, so that the thread that waits
+	// for the reply can give up
+	private static final ExecutorService readers = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "find-worker-reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private Process process;
+	private DataInputStream in;
+	private DataOutputStream out;
+	// Find handles one image at a time
+	private ReentrantLock lock = new ReentrantLock();
+	private volatile boolean discarded = false;
+
+	// Returns the worker for Find, starting it if needed. Returns null if this
+	// Find doesn't have a worker mode.
+	public static synchronized FindWorker get(String find) {
+		FindWorker worker = workers.get(find);
+		if (worker != null)
+			return worker;
+		if (unsupported.contains(find))
+			return null;
+		try {
+			worker = new FindWorker(find);
+		}
+		catch (InterruptedIOException e) {
+			// The interrupt flag is set, the worker is tried again next time
+			return null;
+		}
+		catch (IOException e) {
+			System.out.println("Find has no worker mode, it's started for each image");
+			unsupported.add(find);
+			return null;
+		}
+		workers.put(find, worker);
+		if (!shutdownHook) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					stopAll();
+				}
+			});
+			shutdownHook = true;
+		}
+		return worker;
+	}
+
+	// Stop all workers, they are also stopped when Colorite exits
+	public static synchronized void stopAll() {
+		for (FindWorker worker : workers.values())
+			worker.stop();
+		workers.clear();
+	}
+
+	private FindWorker(String find) throws IOException {
+		System.out.println("Starting 'Find' as a worker");
+		process = new ProcessBuilder(find, "--worker").start();
+		in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+		// What Find prints goes to stderr
+		final BufferedReader log = new BufferedReader(
+				new InputStreamReader(process.getErrorStream()));
+		Thread logger = new Thread() {
+			public void run() {
+				try {
+					String line;
+					while ((line = log.readLine()) != null)
+						System.out.println(line);
+				}
+				catch (IOException e) {
+					// The worker has stopped
+				}
+			}
+		};
+		logger.setDaemon(true);
+		logger.start();
+
+		// Read on another thread, get() holds the lock of the class meanwhile
+		Future<Boolean> reply = readers.submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return in.readInt() == 8 && in.readInt() == MAGIC && in.readInt() == VERSION;
+			}
+		});
+		try {
+			if (!reply.get(START_TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new IOException("Unexpected reply from " + find);
+		}
+		catch (TimeoutException e) {
+			process.destroyForcibly();
+			throw new IOException(find + " didn't reply within " + START_TIMEOUT + " ms");
+		}
+		catch (ExecutionException e) {
+			process.destroyForcibly();
+			throw new IOException("Could not start " + find, e.getCause());
+		}
+		catch (InterruptedException e) {
+			process.destroyForcibly();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while starting " + find);
+		}
+		catch (IOException e) {
+			process.destroyForcibly();
+			throw e;
+		}
+	}
+
+	// Locate the target in the image. Returns null if the target isn't found.
+	// Throws IOException if Find can't read the files, if the worker has
+	// stopped or if there's no reply within timeoutMillis (including the time
+	// spent waiting for other images), the worker is then discarded.
+	public TargetLocation locate(long timeoutMillis, String targetName, String imageName,
+			String targetDataFilename, String outputImage) throws IOException {
+		final ByteArrayOutputStream request = new ByteArrayOutputStream();
+		String[] fields = {targetName, imageName, targetDataFilename,
+				outputImage != null ? outputImage : ""};
+		for (String field : fields) {
+			request.write(field.getBytes("UTF-8"));
+			request.write(0);
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int[] response;
+		try {
+			if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS))
+				throw new IOException("Find didn't get to " + imageName + " within " +
+						timeoutMillis + " ms");
+			try {
+				if (discarded)
+					throw new IOException("The Find worker has been stopped");
+				ProcessRunner.acquire();
+				try {
+					Future<int[]> reply = readers.submit(new Callable<int[]>() {
+						public int[] call() throws IOException {
+							return send(request);
+						}
+					});
+					try {
+						response = reply.get(Math.max(0, deadline - System.currentTimeMillis()),
+								TimeUnit.MILLISECONDS);
+					}
+					catch (TimeoutException e) {
+						discard();
+						throw new IOException("Find was stopped after " + timeoutMillis + " ms");
+					}
+					catch (ExecutionException e) {
+						discard();
+						if (e.getCause() instanceof IOException)
+							throw (IOException) e.getCause();
+						throw new IOException("Could not read the reply of Find", e.getCause());
+					}
+					catch (InterruptedException e) {
+						// The reply is still on its way, the worker can't be used again
+						discard();
+						throw e;
+					}
+				}
+				finally {
+					ProcessRunner.release();
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while locating the target in " +
+					imageName);
+		}
+
+		if (response[0] == -1)
+			throw new IOException("Find could not read " + imageName);
+		if (response[0] == 0)
+			return null;
+		if (response.length < 11 || response.length != 11 + 2*response[10])
+			throw new IOException("Malformed reply from Find");
+
+		boolean upsideDown = response[1] == 1;
+		int[][] corners = new int[4][2];
+		for (int i = 0; i < 4; i++) {
+			corners[i][0] = response[2 + 2*i];
+			corners[i][1] = response[3 + 2*i];
+		}
+		int numPatches = response[10];
+		int[][] patches = new int[numPatches][2];
+		for (int i = 0; i < numPatches; i++) {
+			patches[i][0] = response[11 + 2*i];
+			patches[i][1] = response[12 + 2*i];
+		}
+		return new TargetLocation(corners, patches, upsideDown);
+	}
+
+	// Send the request and read the reply
+	private int[] send(ByteArrayOutputStream request) throws IOException {
+		out.writeInt(request.size());
+		request.writeTo(out);
+		out.flush();
+
+		int length = in.readInt();
+		if (length < 4 || length % 4 != 0)
+			throw new IOException("Malformed reply from Find");
+		int[] response = new int[length/4];
+		for (int i = 0; i < response.length; i++)
+			response[i] = in.readInt();
+		return response;
+	}
+
+	// Also stops a reader that waits for the reply
+	private void discard() {
+		discarded = true;
+		synchronized (FindWorker.class) {
+			workers.values().remove(this);
+		}
+		process.destroyForcibly();
+	}
+
+	private void stop() {
+		try {
+			out.writeInt(0);
+			out.flush();
+			if (!process.waitFor(5, TimeUnit.SECONDS))
+				process.destroy();
+		}
+		catch (Exception e) {
+			process.destroy();
+		}
+	}
+}
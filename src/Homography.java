@@ -0,0 +1,213 @@
+import java.util.Random;
+
+// Estimation of the homography between two planes, corresponding to
+// cvFindHomography with CV_RANSAC in Find. The homography is returned as nine
+// values in row-major order with h[8] = 1.
+public class Homography {
+
+	private static final int ITERATIONS = 2000;
+
+	// Find the homography that maps src onto dst with RANSAC. The points are
+	// stored as x0, y0, x1, y1, ... and matches with a reprojection error
+	// above threshold are treated as outliers. Returns null if no homography
+	// with at least four inliers is found. If inliers isn't null, it's set to
+	// true for the matches that agree with the returned homography.
+	public static double[] find(double[] src, double[] dst, int n, double threshold,
+			boolean[] inliers) {
+		if (n < 4)
+			return null;
+		// Fixed seed, the same image should always give the same result
+		Random random = new Random(0);
+		int[] sample = new int[4];
+		boolean[] current = new boolean[n];
+		boolean[] best = new boolean[n];
+		int bestCount = 0;
+		int iterations = ITERATIONS;
+		for (int it = 0; it < iterations; it++) {
+			for (int i = 0; i < 4; i++) {
+				boolean unique;
+				do {
+					sample[i] = random.nextInt(n);
+					unique = true;
+					for (int j = 0; j < i; j++)
+						if (sample[j] == sample[i])
+							unique = false;
+				} while (!unique);
+			}
+			if (!isGoodSample(src, dst, sample))
+				continue;
+			double[] h = fit(src, dst, sample, 4);
+			if (h == null)
+				continue;
+			int count = countInliers(h, src, dst, n, threshold, current);
+			if (count > bestCount) {
+				bestCount = count;
+				System.arraycopy(current, 0, best, 0, n);
+				// Adapt the number of iterations to the ratio of inliers (99.5%)
+				double ratio = (double) count/n;
+				double needed = Math.log(0.005)/Math.log(1 - Math.pow(ratio, 4) + 1e-12);
+				iterations = (int) Math.min(ITERATIONS, Math.max(needed, it + 1));
+			}
+		}
+		if (bestCount < 4)
+			return null;
+
+		// Refine with all inliers
+		int[] all = new int[bestCount];
+		int k = 0;
+		for (int i = 0; i < n; i++)
+			if (best[i])
+				all[k++] = i;
+		double[] h = fit(src, dst, all, bestCount);
+		if (h == null)
+			return null;
+		countInliers(h, src, dst, n, threshold, current);
+		if (inliers != null)
+			System.arraycopy(current, 0, inliers, 0, n);
+		return h;
+	}
+
+	// Like cvFindHomography, reject samples where three points are on a line or
+	// where the points are in different order in the two images, since they
+	// give degenerate homographies
+	private static boolean isGoodSample(double[] src, double[] dst, int[] sample) {
+		for (int i = 0; i < 4; i++) {
+			for (int j = i + 1; j < 4; j++) {
+				for (int k = j + 1; k < 4; k++) {
+					double a = area(src, sample[i], sample[j], sample[k]);
+					double b = area(dst, sample[i], sample[j], sample[k]);
+					if (Math.abs(a) < 1 || Math.abs(b) < 1 || (a < 0) != (b < 0))
+						return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Twice the signed area of the triangle
+	private static double area(double[] p, int i, int j, int k) {
+		return (p[2*j] - p[2*i])*(p[2*k + 1] - p[2*i + 1]) -
+			(p[2*j + 1] - p[2*i + 1])*(p[2*k] - p[2*i]);
+	}
+
+	private static int countInliers(double[] h, double[] src, double[] dst, int n,
+			double threshold, boolean[] inliers) {
+		int count = 0;
+		double[] p = new double[2];
+		for (int i = 0; i < n; i++) {
+			project(h, src[2*i], src[2*i + 1], p);
+			double ex = p[0] - dst[2*i], ey = p[1] - dst[2*i + 1];
+			inliers[i] = ex*ex + ey*ey <= threshold*threshold;
+			if (inliers[i])
+				count++;
+		}
+		return count;
+	}
+
+	// Least squares fit to the selected matches. The points are normalized to
+	// improve the conditioning of the equations.
+	private static double[] fit(double[] src, double[] dst, int[] index, int n) {
+		double[] ts = normalization(src, index, n);
+		double[] td = normalization(dst, index, n);
+		double[][] ata = new double[8][8];
+		double[] atb = new double[8];
+		double[] row = new double[8];
+		for (int k = 0; k < n; k++) {
+			int i = index[k];
+			double x = (src[2*i] - ts[0])*ts[2], y = (src[2*i + 1] - ts[1])*ts[2];
+			double u = (dst[2*i] - td[0])*td[2], v = (dst[2*i + 1] - td[1])*td[2];
+			for (int eq = 0; eq < 2; eq++) {
+				double b;
+				if (eq == 0) {
+					row[0] = x; row[1] = y; row[2] = 1; row[3] = 0; row[4] = 0; row[5] = 0;
+					row[6] = -u*x; row[7] = -u*y; b = u;
+				}
+				else {
+					row[0] = 0; row[1] = 0; row[2] = 0; row[3] = x; row[4] = y; row[5] = 1;
+					row[6] = -v*x; row[7] = -v*y; b = v;
+				}
+				for (int r = 0; r < 8; r++) {
+					for (int c = 0; c < 8; c++)
+						ata[r][c] += row[r]*row[c];
+					atb[r] += row[r]*b;
+				}
+			}
+		}
+		double[] hn = solve(ata, atb);
+		if (hn == null)
+			return null;
+
+		// Undo the normalization: h = Td^-1 * Hn * Ts
+		double[][] m = {{hn[0], hn[1], hn[2]}, {hn[3], hn[4], hn[5]}, {hn[6], hn[7], 1}};
+		double[][] s = {{ts[2], 0, -ts[2]*ts[0]}, {0, ts[2], -ts[2]*ts[1]}, {0, 0, 1}};
+		double[][] d = {{1/td[2], 0, td[0]}, {0, 1/td[2], td[1]}, {0, 0, 1}};
+		double[][] r = multiply(d, multiply(m, s));
+		if (Math.abs(r[2][2]) < 1e-12)
+			return null;
+		double[] h = new double[9];
+		for (int i = 0; i < 9; i++)
+			h[i] = r[i/3][i%3]/r[2][2];
+		return h;
+	}
+
+	// Centroid and scale so that the mean distance to the centroid is sqrt(2)
+	private static double[] normalization(double[] p, int[] index, int n) {
+		double cx = 0, cy = 0;
+		for (int k = 0; k < n; k++) {
+			cx += p[2*index[k]];
+			cy += p[2*index[k] + 1];
+		}
+		cx /= n;
+		cy /= n;
+		double dist = 0;
+		for (int k = 0; k < n; k++)
+			dist += Math.hypot(p[2*index[k]] - cx, p[2*index[k] + 1] - cy);
+		dist /= n;
+		return new double[] {cx, cy, dist > 0 ? Math.sqrt(2)/dist : 1};
+	}
+
+	private static double[][] multiply(double[][] a, double[][] b) {
+		double[][] r = new double[3][3];
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 3; k++)
+					r[i][j] += a[i][k]*b[k][j];
+		return r;
+	}
+
+	public static void project(double[] h, double x, double y, double[] p) {
+		double z = 1./(h[6]*x + h[7]*y + h[8]);
+		p[0] = (h[0]*x + h[1]*y + h[2])*z;
+		p[1] = (h[3]*x + h[4]*y + h[5])*z;
+	}
+
+	// Solve a*x = b with Gaussian elimination and partial pivoting. Returns
+	// null if the system is singular. a and b are modified.
+	public static double[] solve(double[][] a, double[] b) {
+		int n = b.length;
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			for (int r = col + 1; r < n; r++)
+				if (Math.abs(a[r][col]) > Math.abs(a[pivot][col]))
+					pivot = r;
+			if (Math.abs(a[pivot][col]) < 1e-12)
+				return null;
+			double[] tmp = a[col]; a[col] = a[pivot]; a[pivot] = tmp;
+			double t = b[col]; b[col] = b[pivot]; b[pivot] = t;
+			for (int r = col + 1; r < n; r++) {
+				double f = a[r][col]/a[col][col];
+				for (int c = col; c < n; c++)
+					a[r][c] -= f*a[col][c];
+				b[r] -= f*b[col];
+			}
+		}
+		double[] x = new double[n];
+		for (int r = n - 1; r >= 0; r--) {
+			double sum = b[r];
+			for (int c = r + 1; c < n; c++)
+				sum -= a[r][c]*x[c];
+			x[r] = sum/a[r][r];
+		}
+		return x;
+	}
+}
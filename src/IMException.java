@@ -4,4 +4,12 @@ public class IMException extends Exception {
 	public IMException() {
 		super("ImageMagick returned null");
 	}	
+	
+	public IMException(String message) {
+		super(message);
+	}
+	
+	public IMException(String message, Throwable cause) {
+		super(message, cause);
+	}
 }
@@ -0,0 +1,76 @@
+import java.io.IOException;
+
+// The location of a target in an image, read from an imageData file written by
+// Find or Colorite. imageDataTemplate.xml has the same elements without
+// values, so it can be read as well.
+public class ImageData {
+
+	private static final int PATCH_X = 0;
+	private static final int PATCH_Y = 1;
+	private static final int CORNER_X = 2;
+	private static final int CORNER_Y = 3;
+	private static final int UPSIDE_DOWN = 4;
+	private static final int NAME_OF_TARGET = 5;
+	private static final XmlReader reader = new XmlReader("patchData/patch/center/X",
+			"patchData/patch/center/Y", "corner/X", "corner/Y",
+			"generalData/targetUpsideDown", "generalData/nameOfTarget");
+
+	private String nameOfTarget;
+	private int[][] patchLocations;
+	private int[][] corners;
+	private boolean upsideDown;
+
+	private ImageData() {
+	}
+
+	public static ImageData read(String imageDataFilename) throws IOException {
+		String[][] values = reader.read(imageDataFilename);
+		ImageData data = new ImageData();
+		int numPatches = Math.min(values[PATCH_X].length, values[PATCH_Y].length);
+		data.patchLocations = new int[numPatches][2];
+		for (int i = 0; i < numPatches; i++) {
+			data.patchLocations[i][0] = toInt(values[PATCH_X][i]);
+			data.patchLocations[i][1] = toInt(values[PATCH_Y][i]);
+		}
+		int numCorners = Math.min(values[CORNER_X].length, values[CORNER_Y].length);
+		data.corners = new int[numCorners][2];
+		for (int i = 0; i < numCorners; i++) {
+			data.corners[i][0] = toInt(values[CORNER_X][i]);
+			data.corners[i][1] = toInt(values[CORNER_Y][i]);
+		}
+		data.upsideDown = values[UPSIDE_DOWN].length > 0 &&
+			values[UPSIDE_DOWN][0].equals("1");
+		data.nameOfTarget = values[NAME_OF_TARGET].length > 0 ?
+			values[NAME_OF_TARGET][0] : "";
+		return data;
+	}
+
+	// An empty value (in the template) is 0
+	private static int toInt(String value) {
+		return value.length() > 0 ? Integer.valueOf(value) : 0;
+	}
+
+	public String getNameOfTarget() {
+		return nameOfTarget;
+	}
+
+	public int getNumPatches() {
+		return patchLocations.length;
+	}
+
+	public int getPatchLocation(int i, int j) {
+		return patchLocations[i][j];
+	}
+
+	public int getNumCorners() {
+		return corners.length;
+	}
+
+	public int getCorner(int i, int j) {
+		return corners[i][j];
+	}
+
+	public boolean isTargetUpsideDown() {
+		return upsideDown;
+	}
+}
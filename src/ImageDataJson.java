@@ -0,0 +1,196 @@
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+
+// A MeasurementResult as JSON, with the same contents as the imageData XML
+// file written by ImageDataWriter. Used by the MeasurementServer. Values that
+// aren't numbers (e.g. a deltaC that couldn't be computed) are null.
+public class ImageDataJson {
+
+	private StringBuilder json = new StringBuilder();
+	// True when the next value in an object or array needs no comma
+	private boolean first = true;
+
+	public static String write(MeasurementResult result, String imageQuality) {
+		ImageDataJson writer = new ImageDataJson();
+		writer.writeDocument(result, imageQuality);
+		return writer.json.toString();
+	}
+
+	// A JSON object with one field, e.g. {"error": "..."}
+	public static String field(String name, String value) {
+		ImageDataJson writer = new ImageDataJson();
+		writer.start(null);
+		writer.value(name, value);
+		writer.end();
+		return writer.json.toString();
+	}
+
+	// A JSON object with one list of strings, e.g. {"targets": [...]}
+	public static String list(String name, Collection<String> values) {
+		ImageDataJson writer = new ImageDataJson();
+		writer.start(null);
+		writer.startArray(name);
+		for (String value : values)
+			writer.value(null, value);
+		writer.endArray();
+		writer.end();
+		return writer.json.toString();
+	}
+
+	private void writeDocument(MeasurementResult measure, String imageQuality) {
+		int numPatches = measure.getNumPatches();
+		int stencil = measure.getStencil();
+		boolean lab = measure.isLAB();
+
+		start(null);
+		start("generalData");
+		value("nameOfTarget", measure.getTargetName());
+		value("dateOfProcessing", new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+		int slash = Math.max(imageQuality.lastIndexOf('/'), imageQuality.lastIndexOf('\\'));
+		value("qualityLevel", imageQuality.substring(slash + 1));
+		value("imageColorSpace", measure.getColorSpace());
+		number("numberOfPatches", numPatches);
+		startArray("positionOfTarget");
+		for (int i = 0; i < 4; i++) {
+			start(null);
+			number("X", measure.getTargetCorner(i, 0));
+			number("Y", measure.getTargetCorner(i, 1));
+			end();
+		}
+		endArray();
+		value("targetUpsideDown", measure.isTargetUpsideDown());
+		number("sizeOfStencil", stencil);
+		end();
+
+		if (lab) {
+			start("gainModulation");
+			String[] names = ImageDataWriter.GAIN_MODULATION;
+			for (int i = 0; i < names.length; i++) {
+				if (measure.getGM(i) > 0)
+					number(names[i], measure.getGM(i));
+			}
+			end();
+		}
+
+		startArray("patchData");
+		for (int i = 0; i < numPatches; i++) {
+			start(null);
+			start("center");
+			number("X", measure.getPatchLocation(i, 0));
+			number("Y", measure.getPatchLocation(i, 1));
+			end();
+			String[] channels = lab ? new String[] {"L", "A", "B"} :
+				new String[] {"R", "G", "B"};
+			start(lab ? "LAB" : "adobeRGB");
+			for (int j = 0; j < 3; j++)
+				number(channels[j], measure.getMeasuredColorValue(i, j));
+			end();
+			if (lab) {
+				number("deltaE", measure.getDeltaE(i));
+				// deltaL and deltaC are only computed for the grayscale patches
+				if (measure.isGrayscalePatch(i)) {
+					number("deltaL", measure.getDeltaL(i));
+					number("deltaC", measure.getDeltaC(i));
+				}
+			}
+			else {
+				start("deviationRGB");
+				for (int j = 0; j < 3; j++)
+					number(channels[j], measure.getDeviationRGB(i, j));
+				end();
+			}
+			number("noise", measure.getNoise(i));
+			end();
+		}
+		endArray();
+
+		start("measurements");
+		number("lengthOfTarget", measure.getTargetLength());
+		number("resolution", measure.getResolution());
+		if (lab) {
+			number("maxDeltaE", measure.getMaxDeltaE());
+			number("meanDeltaE", measure.getMeanDeltaE());
+			number("maxDeltaL", measure.getMaxDeltaL());
+			number("meanDeltaL", measure.getMeanDeltaL());
+			number("maxDeltaC", measure.getMaxDeltaC());
+			number("meanDeltaC", measure.getMeanDeltaC());
+		}
+		else {
+			number("maxDeviation", measure.getMaxDeviationRGB());
+			number("meanDeviation", measure.getMeanDeviationRGB());
+		}
+		end();
+		end();
+	}
+
+	// Start an object, name is null in an array or for the whole document
+	private void start(String name) {
+		name(name);
+		json.append('{');
+		first = true;
+	}
+
+	private void end() {
+		json.append('}');
+		first = false;
+	}
+
+	private void startArray(String name) {
+		name(name);
+		json.append('[');
+		first = true;
+	}
+
+	private void endArray() {
+		json.append(']');
+		first = false;
+	}
+
+	private void name(String name) {
+		if (!first)
+			json.append(',');
+		first = false;
+		if (name != null) {
+			string(name);
+			json.append(':');
+		}
+	}
+
+	private void value(String name, String value) {
+		name(name);
+		if (value == null)
+			json.append("null");
+		else
+			string(value);
+	}
+
+	private void value(String name, boolean value) {
+		name(name);
+		json.append(value);
+	}
+
+	private void number(String name, double value) {
+		name(name);
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			json.append("null");
+		else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			json.append((long) value);
+		else
+			json.append(value);
+	}
+
+	private void string(String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if (c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		json.append('"');
+	}
+}
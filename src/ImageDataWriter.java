@@ -0,0 +1,206 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+// Writes a MeasurementResult to an imageData XML file in one pass. The
+// elements are created when they have a value, e.g. an LAB image has no RGB
+// values and only the grayscale patches have deltaL and deltaC, so the
+// document doesn't need a template. The file is written to a temporary file
+// that replaces the old one when it's complete.
+public class ImageDataWriter {
+
+	// The element names of the four gain modulations in Measure
+	static final String[] GAIN_MODULATION = {"L95-L90", "L90-L85", "L85-L25",
+		"L85-L10"};
+
+	private static ThreadLocal<XMLOutputFactory> factory = new ThreadLocal<XMLOutputFactory>() {
+		protected XMLOutputFactory initialValue() {
+			return XMLOutputFactory.newInstance();
+		}
+	};
+
+	private XMLStreamWriter writer;
+	private int depth = 0;
+
+	private ImageDataWriter(XMLStreamWriter writer) {
+		this.writer = writer;
+	}
+
+	public static void write(MeasurementResult result, String imageDataFilename,
+			String imageQuality) throws IOException {
+		File file = new File(imageDataFilename).getAbsoluteFile();
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 65536);
+		boolean written = false;
+		try {
+			XMLStreamWriter writer = factory.get().createXMLStreamWriter(out, "UTF-8");
+			new ImageDataWriter(writer).writeDocument(result, imageQuality);
+			writer.close();
+			written = true;
+		}
+		catch (XMLStreamException e) {
+			throw new IOException("Could not write " + imageDataFilename, e);
+		}
+		finally {
+			out.close();
+			if (!written)
+				temp.delete();
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void writeDocument(MeasurementResult measure, String imageQuality)
+		throws XMLStreamException {
+		int numPatches = measure.getNumPatches();
+		int stencil = measure.getStencil();
+		boolean lab = measure.isLAB();
+
+		writer.writeStartDocument("UTF-8", "1.0");
+		start("imageData");
+
+		start("generalData");
+		element("nameOfTarget", measure.getTargetName());
+		element("dateOfProcessing", new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+		// Image quality is a file name, only the name is written
+		int slash = Math.max(imageQuality.lastIndexOf('/'), imageQuality.lastIndexOf('\\'));
+		element("qualityLevel", imageQuality.substring(slash + 1));
+		element("imageColorSpace", measure.getColorSpace());
+		element("numberOfPatches", Integer.toString(numPatches));
+		start("positionOfTarget");
+		for (int i = 0; i < 4; i++) {
+			start("corner");
+			element("X", Integer.toString(measure.getTargetCorner(i, 0)));
+			element("Y", Integer.toString(measure.getTargetCorner(i, 1)));
+			end();
+		}
+		end();
+		element("targetUpsideDown", measure.isTargetUpsideDown() ? "1" : "0");
+		element("sizeOfStencil", stencil + "x" + stencil);
+		end();
+
+		if (lab) {
+			boolean gainModulation = false;
+			for (int i = 0; i < GAIN_MODULATION.length; i++)
+				gainModulation |= measure.getGM(i) > 0;
+			if (gainModulation) {
+				start("gainModulation");
+				for (int i = 0; i < GAIN_MODULATION.length; i++) {
+					if (measure.getGM(i) > 0)
+						element(GAIN_MODULATION[i], Double.toString(measure.getGM(i)));
+				}
+				end();
+			}
+		}
+
+		start("patchData");
+		for (int i = 0; i < numPatches; i++) {
+			start("patch");
+			start("center");
+			element("X", Integer.toString(measure.getPatchLocation(i, 0)));
+			element("Y", Integer.toString(measure.getPatchLocation(i, 1)));
+			end();
+			start("colorValues");
+			if (lab) {
+				start("LAB");
+				element("L", Double.toString(measure.getMeasuredColorValue(i, 0)));
+				element("A", Double.toString(measure.getMeasuredColorValue(i, 1)));
+				element("B", Double.toString(measure.getMeasuredColorValue(i, 2)));
+				end();
+			}
+			else {
+				start("adobeRGB");
+				element("R", Double.toString(measure.getMeasuredColorValue(i, 0)));
+				element("G", Double.toString(measure.getMeasuredColorValue(i, 1)));
+				element("B", Double.toString(measure.getMeasuredColorValue(i, 2)));
+				end();
+			}
+			end();
+			if (lab) {
+				element("deltaE", Double.toString(measure.getDeltaE(i)));
+				// deltaL and deltaC are only computed for the grayscale patches
+				if (measure.isGrayscalePatch(i)) {
+					element("deltaL", Double.toString(measure.getDeltaL(i)));
+					element("deltaC", Double.toString(measure.getDeltaC(i)));
+				}
+			}
+			else {
+				start("deviationRGB");
+				element("R", Integer.toString(measure.getDeviationRGB(i, 0)));
+				element("G", Integer.toString(measure.getDeviationRGB(i, 1)));
+				element("B", Integer.toString(measure.getDeviationRGB(i, 2)));
+				end();
+			}
+			element("noise", Double.toString(measure.getNoise(i)));
+			end();
+		}
+		end();
+
+		start("measurements");
+		element("lengthOfTarget", Double.toString(measure.getTargetLength()));
+		element("resolution", Double.toString(measure.getResolution()));
+		if (lab) {
+			start("LAB");
+			element("maxDeltaE", Double.toString(measure.getMaxDeltaE()));
+			element("meanDeltaE", Double.toString(measure.getMeanDeltaE()));
+			element("maxDeltaL", Double.toString(measure.getMaxDeltaL()));
+			element("meanDeltaL", Double.toString(measure.getMeanDeltaL()));
+			element("maxDeltaC", Double.toString(measure.getMaxDeltaC()));
+			element("meanDeltaC", Double.toString(measure.getMeanDeltaC()));
+			end();
+		}
+		else {
+			start("RGB");
+			element("maxDeviation", Integer.toString(measure.getMaxDeviationRGB()));
+			element("meanDeviation", Double.toString(measure.getMeanDeviationRGB()));
+			end();
+		}
+		end();
+
+		end();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+	}
+
+	// The elements are indented like imageDataTemplate.xml
+	private void indent() throws XMLStreamException {
+		writer.writeCharacters("\n");
+		for (int i = 0; i < depth; i++)
+			writer.writeCharacters("  ");
+	}
+
+	private void start(String name) throws XMLStreamException {
+		indent();
+		writer.writeStartElement(name);
+		depth++;
+	}
+
+	private void end() throws XMLStreamException {
+		depth--;
+		indent();
+		writer.writeEndElement();
+	}
+
+	private void element(String name, String value) throws XMLStreamException {
+		indent();
+		writer.writeStartElement(name);
+		if (value != null)
+			writer.writeCharacters(value);
+		writer.writeEndElement();
+	}
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Reads the color space, the size and the sample format of an image from the
+// header of the file, without decoding the image or starting ImageMagick.
+// TIFF, PNG and JPEG are handled, probe() returns null for other formats.
+public class ImageProbe {
+
+	public static final String LAB = "LAB";
+	public static final String RGB = "RGB";
+	public static final String GRAY = "GRAY";
+	public static final String CMYK = "CMYK";
+	public static final String UNKNOWN = "UNKNOWN";
+
+	private String format;
+	private String colorSpace = UNKNOWN;
+	private int width;
+	private int height;
+	private int bitsPerSample;
+	private int samplesPerPixel;
+	private boolean floatingPoint;
+	// The PhotometricInterpretation of a TIFF, -1 if it's missing
+	private int photometric = -1;
+	private boolean iccProfile;
+	// A TIFF whose first image is a reduced-resolution preview, or a DNG
+	private boolean reducedResolution;
+	private boolean dng;
+
+	private ImageProbe(String format) {
+		this.format = format;
+	}
+
+	// Returns null if the format isn't recognized
+	public static ImageProbe probe(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			byte[] magic = new byte[8];
+			if (file.read(magic) < 8)
+				return null;
+			if ((magic[0] == 'I' && magic[1] == 'I') || (magic[0] == 'M' && magic[1] == 'M'))
+				return probeTIFF(file, magic[0] == 'I');
+			if ((magic[0] & 0xff) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G')
+				return probePNG(file);
+			if ((magic[0] & 0xff) == 0xff && (magic[1] & 0xff) == 0xd8)
+				return probeJPEG(file);
+			return null;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static ImageProbe probeTIFF(RandomAccessFile file, boolean littleEndian)
+		throws IOException {
+		if (readShort(file, 2, littleEndian) != 42)
+			return null;
+		ImageProbe probe = new ImageProbe("TIFF");
+		probe.samplesPerPixel = 1;
+		probe.bitsPerSample = 1;
+		long ifd = readInt(file, 4, littleEndian);
+		int entries = readShort(file, ifd, littleEndian);
+		for (int i = 0; i < entries; i++) {
+			long entry = ifd + 2 + 12*i;
+			int tag = readShort(file, entry, littleEndian);
+			int type = readShort(file, entry + 2, littleEndian);
+			// Only the first value is needed, it's stored in the entry if it fits
+			long count = readInt(file, entry + 4, littleEndian);
+			long pos = entry + 8;
+			if ((type == 3 && count > 2) || (type == 4 && count > 1))
+				pos = readInt(file, entry + 8, littleEndian);
+			long value = (type == 3) ? readShort(file, pos, littleEndian) :
+				readInt(file, pos, littleEndian);
+			switch (tag) {
+			case 254: probe.reducedResolution = (value & 1) != 0; break;
+			case 256: probe.width = (int) value; break;
+			case 257: probe.height = (int) value; break;
+			case 258: probe.bitsPerSample = (int) value; break;
+			case 262: probe.photometric = (int) value; break;
+			case 277: probe.samplesPerPixel = (int) value; break;
+			case 339: probe.floatingPoint = (value == 3); break;
+			case 34675: probe.iccProfile = true; break;
+			case 50706: probe.dng = true; break;
+			default: break;
+			}
+		}
+		switch (probe.photometric) {
+		case 0: case 1: probe.colorSpace = GRAY; break;
+		// YCbCr is left as unknown, it may be subsampled and isn't RGB until
+		// it's decoded. So are ICCLab and ITULab, which PatchSampler doesn't
+		// read, ImageMagick is asked about them instead.
+		case 2: case 3: probe.colorSpace = RGB; break;
+		case 5: probe.colorSpace = CMYK; break;
+		case 8: probe.colorSpace = LAB; break;
+		default: break;
+		}
+		return probe;
+	}
+
+	private static ImageProbe probePNG(RandomAccessFile file) throws IOException {
+		ImageProbe probe = new ImageProbe("PNG");
+		long pos = 8;
+		while (pos + 8 <= file.length()) {
+			long length = readInt(file, pos, false);
+			file.seek(pos + 4);
+			byte[] type = new byte[4];
+			file.readFully(type);
+			String chunk = new String(type, "US-ASCII");
+			if (chunk.equals("IHDR")) {
+				probe.width = (int) readInt(file, pos + 8, false);
+				probe.height = (int) readInt(file, pos + 12, false);
+				file.seek(pos + 16);
+				probe.bitsPerSample = file.readUnsignedByte();
+				int colorType = file.readUnsignedByte();
+				probe.samplesPerPixel = new int[] {1, 0, 3, 1, 2, 0, 4}[Math.min(colorType, 6)];
+				probe.colorSpace = (colorType == 0 || colorType == 4) ? GRAY : RGB;
+			}
+			else if (chunk.equals("iCCP"))
+				probe.iccProfile = true;
+			else if (chunk.equals("IDAT") || chunk.equals("IEND"))
+				break;
+			// Length, type, data and CRC
+			pos += 12 + length;
+		}
+		return probe;
+	}
+
+	private static ImageProbe probeJPEG(RandomAccessFile file) throws IOException {
+		ImageProbe probe = new ImageProbe("JPEG");
+		long pos = 2;
+		while (pos + 4 <= file.length()) {
+			file.seek(pos);
+			if (file.readUnsignedByte() != 0xff)
+				break;
+			int marker = file.readUnsignedByte();
+			int length = file.readUnsignedShort();
+			if (marker == 0xe2) {
+				byte[] id = new byte[11];
+				file.readFully(id);
+				if (new String(id, "US-ASCII").equals("ICC_PROFILE"))
+					probe.iccProfile = true;
+			}
+			// SOF0-SOF15, except DHT, JPG and DAC
+			else if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 &&
+					marker != 0xc8 && marker != 0xcc) {
+				probe.bitsPerSample = file.readUnsignedByte();
+				probe.height = file.readUnsignedShort();
+				probe.width = file.readUnsignedShort();
+				probe.samplesPerPixel = file.readUnsignedByte();
+				if (probe.samplesPerPixel == 1)
+					probe.colorSpace = GRAY;
+				else if (probe.samplesPerPixel == 3)
+					probe.colorSpace = RGB;
+				else if (probe.samplesPerPixel == 4)
+					probe.colorSpace = CMYK;
+				break;
+			}
+			else if (marker == 0xda)
+				break;
+			pos += 2 + length;
+		}
+		return probe;
+	}
+
+	private static int readShort(RandomAccessFile file, long pos, boolean littleEndian)
+		throws IOException {
+		file.seek(pos);
+		int a = file.readUnsignedByte(), b = file.readUnsignedByte();
+		return littleEndian ? (b << 8) | a : (a << 8) | b;
+	}
+
+	private static long readInt(RandomAccessFile file, long pos, boolean littleEndian)
+		throws IOException {
+		file.seek(pos);
+		byte[] bytes = new byte[4];
+		file.readFully(bytes);
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = bytes[littleEndian ? 3 - i : i] & 0xff;
+			value = (value << 8) | b;
+		}
+		return value;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public String getColorSpace() {
+		return colorSpace;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	public int getSamplesPerPixel() {
+		return samplesPerPixel;
+	}
+
+	public int getPhotometricInterpretation() {
+		return photometric;
+	}
+
+	public boolean isFloatingPoint() {
+		return floatingPoint;
+	}
+
+	public boolean hasIccProfile() {
+		return iccProfile;
+	}
+
+	// The first image isn't the full image, the size and the color space
+	// are those of the preview
+	public boolean isReducedResolution() {
+		return reducedResolution;
+	}
+
+	public boolean isDNG() {
+		return dng;
+	}
+}
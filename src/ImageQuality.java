@@ -0,0 +1,96 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The limits of a quality level (e.g. qualityLevel1.xml). A quality level is
+// read once and then kept in memory as long as the file isn't changed.
+public class ImageQuality {
+
+	private static final int MIN_GAIN_MODULATION = 0;
+	private static final int MAX_GAIN_MODULATION = 1;
+	private static final int MEAN_DELTA_E = 2;
+	private static final int MAX_DELTA_E = 3;
+	private static final int MAX_DELTA_L = 4;
+	private static final int MAX_DELTA_C = 5;
+	private static final XmlReader reader = new XmlReader("gainModulation/*/min",
+			"gainModulation/*/max", "colorAccuracy/delta-e/mean",
+			"colorAccuracy/delta-e/max", "delta-L/max", "delta-c/max");
+
+	private static ConcurrentHashMap<String, ImageQuality> cache =
+		new ConcurrentHashMap<String, ImageQuality>();
+
+	// L95-L90, L90-L85, L85-L25 and L85-L10
+	private double[] minGainModulation;
+	private double[] maxGainModulation;
+	private double allowedMeanDeltaE;
+	private double allowedMaxDeltaE;
+	private double allowedMaxDeltaL;
+	private double allowedMaxDeltaC;
+	private long lastModified;
+
+	private ImageQuality() {
+	}
+
+	public static ImageQuality get(String qualityFilename) throws IOException {
+		File file = new File(qualityFilename).getAbsoluteFile();
+		ImageQuality quality = cache.get(file.getPath());
+		if (quality != null && quality.lastModified == file.lastModified())
+			return quality;
+		quality = read(file);
+		cache.put(file.getPath(), quality);
+		return quality;
+	}
+
+	private static ImageQuality read(File file) throws IOException {
+		ImageQuality q = new ImageQuality();
+		q.lastModified = file.lastModified();
+		String filename = file.getPath();
+		String[][] values = reader.read(filename);
+		q.minGainModulation = toDoubles(values[MIN_GAIN_MODULATION]);
+		q.maxGainModulation = toDoubles(values[MAX_GAIN_MODULATION]);
+		q.allowedMeanDeltaE = Double.valueOf(XmlReader.first(values[MEAN_DELTA_E],
+				"delta-e/mean", filename));
+		q.allowedMaxDeltaE = Double.valueOf(XmlReader.first(values[MAX_DELTA_E],
+				"delta-e/max", filename));
+		q.allowedMaxDeltaL = Double.valueOf(XmlReader.first(values[MAX_DELTA_L],
+				"delta-L/max", filename));
+		q.allowedMaxDeltaC = Double.valueOf(XmlReader.first(values[MAX_DELTA_C],
+				"delta-c/max", filename));
+		return q;
+	}
+
+	private static double[] toDoubles(String[] values) {
+		double[] result = new double[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = values[i].length() > 0 ? Double.valueOf(values[i]) : 0;
+		return result;
+	}
+
+	public int getNumGainModulations() {
+		return minGainModulation.length;
+	}
+
+	public double getMinGainModulation(int i) {
+		return minGainModulation[i];
+	}
+
+	public double getMaxGainModulation(int i) {
+		return maxGainModulation[i];
+	}
+
+	public double getAllowedMeanDeltaE() {
+		return allowedMeanDeltaE;
+	}
+
+	public double getAllowedMaxDeltaE() {
+		return allowedMaxDeltaE;
+	}
+
+	public double getAllowedMaxDeltaL() {
+		return allowedMaxDeltaL;
+	}
+
+	public double getAllowedMaxDeltaC() {
+		return allowedMaxDeltaC;
+	}
+}
@@ -0,0 +1,158 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Watches one or more inbox directories and gives new images to a
+// BatchPipeline, until stop() is called. A capture station writes an image
+// over several seconds, so an image is only measured when its size and date
+// haven't changed for a while and it can be opened. The images that are in
+// the inboxes when the watcher starts are measured unless they already have
+// a result (iQ_<image>.xml) that is newer than the image.
+public class InboxWatcher {
+
+	// An image must be unchanged this long before it's measured
+	private static final long SETTLE_MILLIS = 2000;
+	private static final long POLL_MILLIS = 500;
+
+	private File[] inboxes;
+	private BatchPipeline pipeline;
+	private WatchService watcher;
+	private volatile boolean stopped = false;
+	// The images that are being written, with their size, date and the time
+	// they were last seen to change
+	private HashMap<File, long[]> pending = new HashMap<File, long[]>();
+
+	public InboxWatcher(File[] inboxes, BatchPipeline pipeline) {
+		this.inboxes = inboxes;
+		this.pipeline = pipeline;
+	}
+
+	// Watch the inboxes until stop() is called. The images that have been
+	// submitted are measured before this returns.
+	public void run() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		HashMap<WatchKey, File> keys = new HashMap<WatchKey, File>();
+		for (File inbox : inboxes) {
+			WatchKey key = inbox.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(key, inbox);
+			System.out.println("Watching " + inbox);
+		}
+		pipeline.start();
+		try {
+			for (File inbox : inboxes)
+				scan(inbox);
+			while (!stopped) {
+				WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					File inbox = keys.get(key);
+					for (WatchEvent<?> event : key.pollEvents()) {
+						// Events have been lost, the whole inbox is checked
+						// for images that haven't been measured
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							scan(inbox);
+						else
+							changed(new File(inbox, ((Path) event.context()).toString()));
+					}
+					if (!key.reset()) {
+						System.out.println("No longer watching " + inbox);
+						keys.remove(key);
+					}
+				}
+				submitSettled();
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			// Stopped
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		finally {
+			pipeline.finish();
+		}
+	}
+
+	// Stop watching, the images that are already in the pipeline are finished
+	public void stop() {
+		stopped = true;
+		try {
+			if (watcher != null)
+				watcher.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void scan(File inbox) {
+		File[] files = inbox.listFiles();
+		if (files == null)
+			return;
+		for (File file : files)
+			changed(file);
+	}
+
+	// A late event for an image that has already been measured is ignored.
+	// An image that is written again is newer than its result and is measured
+	// again.
+	private void changed(File file) {
+		if (Setup.isBatchImage(file) && !pending.containsKey(file) && !isMeasured(file))
+			pending.put(file, new long[] {-1, -1, System.currentTimeMillis()});
+	}
+
+	// Submit the images that haven't changed since the last poll. submit()
+	// waits while the pipeline is full, the events are queued meanwhile.
+	private void submitSettled() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<File, long[]>> i = pending.entrySet().iterator();
+		while (i.hasNext() && !stopped) {
+			Map.Entry<File, long[]> entry = i.next();
+			File file = entry.getKey();
+			long[] state = entry.getValue();
+			if (!file.isFile()) {
+				i.remove();
+				continue;
+			}
+			long length = file.length();
+			long lastModified = file.lastModified();
+			if (length != state[0] || lastModified != state[1]) {
+				state[0] = length;
+				state[1] = lastModified;
+				state[2] = now;
+			}
+			else if (now - state[2] >= SETTLE_MILLIS && length > 0 && canOpen(file)) {
+				i.remove();
+				pipeline.submit(file);
+			}
+		}
+	}
+
+	// The writer may still have the file open (it's locked on Windows)
+	private static boolean canOpen(File file) {
+		try {
+			new FileInputStream(file).close();
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean isMeasured(File image) {
+		String[] filenames = Setup.batchFilenames(image.getPath());
+		File result = new File(filenames[0]);
+		return result.isFile() && result.lastModified() >= image.lastModified();
+	}
+}
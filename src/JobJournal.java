@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// Records what happens to each image of a batch, so that a batch that was
+// stopped (or crashed) continues where it was when it's started again. The
+// journal is a file that is only appended to, through a memory-mapped
+// buffer. It's written to disk a few times per second rather than for every
+// record. Each record is
+//   length, type, time, path (and the error of a failure), CRC32
+// and a torn record at the end is ignored. An image is tried MAX_ATTEMPTS
+// times (an attempt that crashed Colorite counts), after that it's added to
+// the dead-letter file and skipped.
+public class JobJournal {
+
+	public static final int MAX_ATTEMPTS = 3;
+
+	private static final int MAGIC = 0x43524A4C;
+	private static final int VERSION = 1;
+	private static final int SEGMENT = 1 << 20;
+	private static final long SYNC_MILLIS = 200;
+
+	private static final byte ENQUEUE = 1;
+	private static final byte START = 2;
+	private static final byte SUCCESS = 3;
+	private static final byte FAILURE = 4;
+	private static final byte DEAD = 5;
+
+	private File file;
+	private File deadLetters;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	// The position of buffer in the file
+	private long base;
+	private boolean dirty = false;
+	private boolean closed = false;
+	// The last record and the number of attempts of each image
+	private HashMap<String, int[]> states = new HashMap<String, int[]>();
+
+	// Open the journal of a batch. The key identifies the settings of the
+	// batch (target, quality level etc), a journal with another key belongs
+	// to another batch and is replaced.
+	public JobJournal(File file, File deadLetters, byte[] key) throws IOException {
+		this.file = file;
+		this.deadLetters = deadLetters;
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long end = replay(key);
+		if (end < 0) {
+			if (channel.size() > 0)
+				System.out.println("Starting a new journal, the settings of the batch have changed");
+			channel.truncate(0);
+			states.clear();
+			base = 0;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(key.length);
+			buffer.put(key);
+			dirty = true;
+		}
+		else {
+			base = end;
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, SEGMENT);
+			System.out.println("Continuing the batch in " + file.getName() + ", " +
+					states.size() + " images in the journal");
+		}
+
+		Thread flusher = new Thread("journal") {
+			public void run() {
+				while (sync()) {
+					try {
+						Thread.sleep(SYNC_MILLIS);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// The key of a batch with these settings. The settings that are files are
+	// identified by their length and time too, so the journal of a batch isn't
+	// continued after e.g. the target data has been changed.
+	public static byte[] key(String... settings) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		for (String setting : settings) {
+			digest.update(setting.getBytes(StandardCharsets.UTF_8));
+			File file = new File(setting);
+			digest.update(ByteBuffer.allocate(1 + 8 + 8).put((byte) 0)
+					.putLong(file.isFile() ? file.length() : -1)
+					.putLong(file.lastModified()).array());
+		}
+		return digest.digest();
+	}
+
+	// Read the records of the journal. Returns the end of the last complete
+	// record, or -1 if there's no journal for this key.
+	private long replay(byte[] key) throws IOException {
+		long size = channel.size();
+		if (size < 12)
+			return -1;
+		MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		if (in.getInt() != MAGIC || in.getInt() != VERSION)
+			return -1;
+		int keyLength = in.getInt();
+		if (keyLength != key.length || in.remaining() < keyLength)
+			return -1;
+		byte[] journalKey = new byte[keyLength];
+		in.get(journalKey);
+		if (!Arrays.equals(journalKey, key))
+			return -1;
+
+		CRC32 crc = new CRC32();
+		while (in.remaining() >= 4) {
+			int start = in.position();
+			int length = in.getInt();
+			// The zeros after the last record of the mapped segment, or a
+			// record that was torn. The next record is written at start.
+			if (length < 9 || length > in.remaining() - 4) {
+				in.position(start);
+				break;
+			}
+			byte[] record = new byte[length];
+			in.get(record);
+			crc.reset();
+			crc.update(record);
+			if (in.getInt() != (int) crc.getValue()) {
+				in.position(start);
+				break;
+			}
+			byte type = record[0];
+			String text = new String(record, 9, length - 9, StandardCharsets.UTF_8);
+			int newline = text.indexOf('\n');
+			String path = newline < 0 ? text : text.substring(0, newline);
+			int[] state = state(path);
+			state[0] = type;
+			if (type == START)
+				state[1]++;
+		}
+		return in.position();
+	}
+
+	private int[] state(String path) {
+		int[] state = states.get(path);
+		if (state == null) {
+			state = new int[2];
+			states.put(path, state);
+		}
+		return state;
+	}
+
+	// Returns false if the image is done or has failed too many times. An
+	// image that has used up its attempts is added to the dead letters.
+	public synchronized boolean isPending(File image) throws IOException {
+		int[] state = states.get(image.getPath());
+		if (state == null)
+			return true;
+		if (state[0] == SUCCESS || state[0] == DEAD)
+			return false;
+		if (state[1] >= MAX_ATTEMPTS) {
+			dead(image, "Stopped during the last attempt");
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized void enqueued(File image) throws IOException {
+		append(ENQUEUE, image.getPath());
+		state(image.getPath())[0] = ENQUEUE;
+	}
+
+	public synchronized void started(File image) throws IOException {
+		append(START, image.getPath());
+		int[] state = state(image.getPath());
+		state[0] = START;
+		state[1]++;
+	}
+
+	public synchronized void succeeded(File image) throws IOException {
+		append(SUCCESS, image.getPath());
+		state(image.getPath())[0] = SUCCESS;
+	}
+
+	// Returns true if the image should be tried again
+	public synchronized boolean failed(File image, Throwable error) throws IOException {
+		append(FAILURE, image.getPath() + "\n" + error);
+		int[] state = state(image.getPath());
+		state[0] = FAILURE;
+		if (state[1] < MAX_ATTEMPTS)
+			return true;
+		dead(image, error.toString());
+		return false;
+	}
+
+	private void dead(File image, String error) throws IOException {
+		append(DEAD, image.getPath());
+		state(image.getPath())[0] = DEAD;
+		System.out.println("Giving up on " + image + " after " + MAX_ATTEMPTS + " attempts");
+		Writer out = new OutputStreamWriter(new FileOutputStream(deadLetters, true),
+				StandardCharsets.UTF_8);
+		try {
+			out.write(image.getPath() + "\t" + error.replace('\n', ' ') + "\n");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private void append(byte type, String text) throws IOException {
+		if (closed)
+			throw new IOException("The journal is closed");
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new byte[9 + bytes.length];
+		record[0] = type;
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < 8; i++)
+			record[1 + i] = (byte) (time >>> (56 - 8*i));
+		System.arraycopy(bytes, 0, record, 9, bytes.length);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		// The next segment starts right after the last record
+		if (buffer.remaining() < record.length + 8) {
+			buffer.force();
+			base += buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, base,
+					Math.max(SEGMENT, record.length + 8));
+		}
+		buffer.putInt(record.length);
+		buffer.put(record);
+		buffer.putInt((int) crc.getValue());
+		dirty = true;
+	}
+
+	// Write the records to disk. Returns false when the journal is closed.
+	private synchronized boolean sync() {
+		if (dirty) {
+			buffer.force();
+			dirty = false;
+		}
+		return !closed;
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		sync();
+		closed = true;
+		try {
+			raf.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Close the journal of a batch that is finished, it's kept as
+	// <journal>.done. The next batch starts from the beginning.
+	public void complete() {
+		close();
+		File done = new File(file.getPath() + ".done");
+		done.delete();
+		if (!file.renameTo(done))
+			file.delete();
+	}
+}
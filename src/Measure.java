@@ -14,10 +14,7 @@
 import java.io.*;
 import java.sql.Date;
 import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 
-import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 import javax.xml.parsers.*;
 import javax.xml.xpath.*;
@@ -53,6 +50,28 @@ public class Measure {
 	private int maxDeviationRGB;
 	private String colorSpace;
 	private String targetName;
+	private double[][] measuredColorValuesSRGB;
+	private PatchSampler sampler;
+	private String samplerFilename;
+	private double[][] relativePatchCenters;
+	private int[] targetSizeInPixels;
+	private boolean targetUpsideDown;
+	private String imageDataTemplateFilename;
+	
+	// The last location of each target, per target and image size. On a copy
+	// stand the target stays in the same place for a whole batch.
+	private static java.util.concurrent.ConcurrentHashMap<String, TargetLocation> 
+		previousLocations = new java.util.concurrent.ConcurrentHashMap<String, TargetLocation>();
+	// The longest time ImageMagick and Find may run for one image
+	private static final long IM_TIMEOUT = 5*60*1000;
+	private static final long FIND_TIMEOUT = 10*60*1000;
+	// Patches used to check a previous location, and the stencil that is read
+	private static final int VERIFY_PATCHES = 8;
+	private static final int VERIFY_STENCIL = 5;
+	// Minimum difference in reference L between the checked patches
+	private static final double VERIFY_MIN_DELTA_L = 10;
+	// Maximum standard deviation (8-bit scale) within a checked patch
+	private static final double VERIFY_MAX_STD_DEV = 10;
 	
 	// TODO Write fail/pass to xml-file?
 	
@@ -61,7 +80,38 @@ public class Measure {
 			String find, String imageMagick) 
 		throws XPathExpressionException, ParserConfigurationException, 
 		SAXException, IOException, IMException, FindException{
+		this(imageName, imageDataTemplateFilename, targetDataFilename, imageMagick);
+		locateTarget(imageName, targetName, imageDataFilename, targetDataFilename, 
+				outputImage, find);
+		computeResolution();
+	}
+	
+	// Read the target data and check the image, but don't locate the target. 
+	// The location is set with setTargetLocation(), this is used when several 
+	// targets are located in the same image (see MultiTargetMeasure).
+	public Measure(String imageName, String imageDataTemplateFilename, 
+			String targetDataFilename, String imageMagick) 
+		throws XPathExpressionException, ParserConfigurationException, 
+		SAXException, IOException, IMException {
 		readNumPatches(targetDataFilename);
+		allocate();
+		this.imageDataTemplateFilename = imageDataTemplateFilename;
+		readTargetData(targetDataFilename);
+		// Check the color space first, we don't want to match the target
+		// in an image that can't be measured
+		checkColorSpace(imageName, imageMagick);	
+	}
+	
+	// Measure an image that is already decoded, nothing is read from files 
+	// (see MeasurementEngine). The color space is "LAB" or "RGB".
+	public Measure(TargetDefinition target, String colorSpace) {
+		numPatches = target.getNumPatches();
+		allocate();
+		setTargetData(target);
+		this.colorSpace = colorSpace;
+	}
+	
+	private void allocate() {
 		patchLocations = new int[numPatches][2];
 		referenceColorValuesLAB = new double [numPatches][3];
 		referenceColorValuesRGB = new int [numPatches][3];
@@ -76,12 +126,52 @@ public class Measure {
 		deltaL = new double[numPatches];
 		deltaC = new double[numPatches];
 		stdDev = new double[numPatches];
-		readTargetData(targetDataFilename);
-		computePatchLocation(imageName, imageDataTemplateFilename, imageDataFilename, 
-				targetName, targetDataFilename, outputImage, find);
-		readImageData(imageDataFilename);
-		computeResolution();
-		checkColorSpace(imageName, imageMagick);	
+		measuredColorValuesSRGB = new double[numPatches][3];
+		relativePatchCenters = new double[numPatches][2];
+		targetSizeInPixels = new int[2];
+	}
+	
+	// Use a location found in-process for the patches
+	public void setTargetLocation(TargetLocation location) {
+		for (int i = 0; i < numPatches; i++) {
+			patchLocations[i][0] = location.getPatches()[i][0];
+			patchLocations[i][1] = location.getPatches()[i][1];
+		}
+		for (int i = 0; i < 4; i++) {
+			targetLocation[i][0] = location.getCorners()[i][0];
+			targetLocation[i][1] = location.getCorners()[i][1];
+		}
+		targetUpsideDown = location.isUpsideDown();
+	}
+	
+	// Use color values that were measured earlier, e.g. by a previous batch
+	// (see ResultCache)
+	public void setMeasuredColorValues(int i, double[] values, double[] valuesSRGB, 
+			double stdDev) {
+		for (int j = 0; j < 3; j++) {
+			measuredColorValues[i][j] = values[j];
+			measuredColorValuesSRGB[i][j] = valuesSRGB[j];
+		}
+		this.stdDev[i] = stdDev;
+	}
+	
+	// Use an image that has already been decoded, the image is then shared
+	// by all targets in it
+	public void setSampler(PatchSampler sampler, String filename) {
+		this.sampler = sampler;
+		samplerFilename = filename;
+	}
+	
+	// Compute the measures used for the color space of the image
+	public void computeMeasures() {
+		if (colorSpace.equals("LAB")) {
+			computeDeltaE();
+			computeDeltaL();
+			computeDeltaC();
+			computeGainModulation();
+		}
+		else
+			computeDeviationRGB();
 	}
 
 	// Compute deltaE for all patches
@@ -116,44 +206,33 @@ public class Measure {
 		//System.out.println("meanDeltaE " + meanDeltaE);
 	}
 
+	// True for the grayscale patches. patchesBeforeChange = 0 when we don't
+	// have any color patches -> more logical description of the target
+	public boolean isGrayscalePatch(int i) {
+		if (startWithGrayscale == 1)
+			return patchesBeforeChange == 0 || i < patchesBeforeChange;
+		return i >= patchesBeforeChange;
+	}
+
 	// Compute deltaC for all grayscale patches
 	public void computeDeltaC() {
 		double sum = 0; 
 		double usedPatches = 0;
 		double max = 0;
 		double a, b,temp;
-		if (startWithGrayscale == 1) {
-			// patchesBeforeChange = 0 when we don't have any color patches 
-			// -> more logical description of the target 
-			if (patchesBeforeChange == 0)
-				patchesBeforeChange = numPatches;
-			for (int i = 0; i < patchesBeforeChange; i++) {
-				a = Math.pow(referenceColorValuesLAB[i][1] - 
-						measuredColorValues[i][1], 2);
-				b = Math.pow(referenceColorValuesLAB[i][2] - 
-						measuredColorValues[i][2], 2);
-				temp = Math.sqrt(a+b);
-				deltaC[i] = (double)Math.round(temp*100)/100;
-				if (temp > max)
-					max = temp;
-				sum += temp;
-				usedPatches++;
-				}
-		}
-		else {
-			for (int i = patchesBeforeChange; i < numPatches; i++) {
-				a = Math.pow(referenceColorValuesLAB[i][1] - 
-						measuredColorValues[i][1], 2);
-				b = Math.pow(referenceColorValuesLAB[i][2] - 
-						measuredColorValues[i][2], 2);
-			
-				temp = Math.sqrt(a+b);
-				deltaC[i] = (double)Math.round(temp*100)/100;
-				if (temp > max)
-					max = temp;
-				sum += temp;
-				usedPatches++;
-			}
+		for (int i = 0; i < numPatches; i++) {
+			if (!isGrayscalePatch(i))
+				continue;
+			a = Math.pow(referenceColorValuesLAB[i][1] - 
+					measuredColorValues[i][1], 2);
+			b = Math.pow(referenceColorValuesLAB[i][2] - 
+					measuredColorValues[i][2], 2);
+			temp = Math.sqrt(a+b);
+			deltaC[i] = (double)Math.round(temp*100)/100;
+			if (temp > max)
+				max = temp;
+			sum += temp;
+			usedPatches++;
 		}
 		
 		// Use two decimal places
@@ -167,34 +246,17 @@ public class Measure {
 		double sum = 0; 
 		double usedPatches = 0;
 		double l, temp;
-		if (startWithGrayscale == 1) {
-			// patchesBeforeChange = 0 when we don't have any color patches 
-			// -> more logical description of the target 
-			if (patchesBeforeChange == 0)
-				patchesBeforeChange = numPatches;
-			for (int i = 0; i < patchesBeforeChange; i++) {
-				l = Math.pow(referenceColorValuesLAB[i][0] - 
-					measuredColorValues[i][0], 2);
-				temp = Math.sqrt(l);
-				deltaL[i] = (double)Math.round(temp*100)/100;
-				if (temp > max)
-					max = temp;
-				sum += temp;
-				usedPatches++;
-				}
-		}
-		else {
-			for (int i = patchesBeforeChange; i < numPatches; i++) {
-				l = Math.pow(referenceColorValuesLAB[i][0] - 
-					measuredColorValues[i][0], 2);
-			
-				temp = Math.sqrt(l);
-				deltaL[i] = (double)Math.round(temp*100)/100;
-				if (temp > max)
-					max = temp;
-				sum += temp;
-				usedPatches++;
-			}
+		for (int i = 0; i < numPatches; i++) {
+			if (!isGrayscalePatch(i))
+				continue;
+			l = Math.pow(referenceColorValuesLAB[i][0] - 
+				measuredColorValues[i][0], 2);
+			temp = Math.sqrt(l);
+			deltaL[i] = (double)Math.round(temp*100)/100;
+			if (temp > max)
+				max = temp;
+			sum += temp;
+			usedPatches++;
 		}
 		
 		// Use two decimal places
@@ -443,21 +505,35 @@ public class Measure {
 	}
 	
 	// Check the color space of the image
+	// The header of the file is read directly, identify is used for formats 
+	// that aren't recognized, for color spaces the header doesn't settle 
+	// (e.g. a missing PhotometricInterpretation or YCbCr) and for DNG files, 
+	// where the first image of the file usually is a preview
 	public void checkColorSpace(String imageName, String imageMagick) 
 		throws IMException{	
+		ImageProbe probe = null;
+		try {
+			probe = ImageProbe.probe(imageName);
+		}
+		catch (IOException err) {
+			err.printStackTrace();
+		}
+		if (probe != null && !probe.getColorSpace().equals(ImageProbe.UNKNOWN) && 
+				!probe.isDNG() && !probe.isReducedResolution()) {
+			if (probe.getColorSpace().equals(ImageProbe.LAB) || 
+					probe.getColorSpace().equals(ImageProbe.RGB)) {
+				colorSpace = probe.getColorSpace();
+				System.out.println("Color space: " + colorSpace);
+				return;
+			}
+			throw new IMException("Unsupported color space: " + probe.getColorSpace());
+		}
+		
 		// Check the type of color space
 		String output = new String();
 		try {
-			Process p = Runtime.getRuntime().exec
-			(imageMagick + "identify -format " + "'%[colorspace]' " + imageName);
-			BufferedReader input =
-		        new BufferedReader
-		          (new InputStreamReader(p.getInputStream()));
-		 
-			// Wait until ImageMagick finishes
-			p.waitFor();
-			output = input.readLine();
-			input.close();
+			output = ProcessRunner.run(IM_TIMEOUT, imageMagick + "identify", 
+					"-format", "'%[colorspace]'", imageName).getFirstLine();
 		}
 		catch (Exception err) {
 			err.printStackTrace();
@@ -483,34 +559,91 @@ public class Measure {
 	
 	// Measure the color values in the image. Also computes the noise since we don't
 	// retain the individual color values in a sample
-	// Include check on colorspace!
+	// The image is decoded once and the patches are read from the raster. 
+	// ImageMagick is only used for images that can't be decoded in-process.
 	// Include step to modify color values to a more common interval!
 	public void measurePatches(int stencil, String filename, String imageMagick,
 			String workingDir) throws IMException {
+		measurePatches(stencil, filename, imageMagick, workingDir, workingDir);
+	}
+	
+	// The temporary files of ImageMagick are written to scratchDir, images 
+	// that are measured at the same time need a scratchDir each
+	public void measurePatches(int stencil, String filename, String imageMagick,
+			String workingDir, String scratchDir) throws IMException {
 		
-		// Delete old file, we use the existence of the file to 
-		// check if ImageMagick worked correctly
-		// Previously just a slash without color ?!?
-		File color = new File(workingDir + "/color.txt");
-		if (color.exists()){
-			color.delete();
+		PatchSampler sampler = openSampler(filename);
+		if (sampler == null) {
+			measurePatchesIM(stencil, filename, imageMagick, scratchDir);
+			return;
+		}
+		measurePatches(stencil, sampler);
+	}
+	
+	// Decode the image, or reuse it if it was decoded by a previous measurement. 
+	// Returns null if the image has to be read with ImageMagick.
+	private PatchSampler openSampler(String filename) {
+		if (sampler != null && filename.equals(samplerFilename))
+			return sampler;
+		try {
+			sampler = PatchSampler.open(filename);
+			samplerFilename = filename;
+		}
+		catch (IOException err) {
+			err.printStackTrace();
+			sampler = null;
+		}
+		return sampler;
+	}
+	
+	// Measure the color values using an already decoded image
+	public void measurePatches(int stencil, PatchSampler sampler) {
+		for (int i = 0; i < numPatches; i++) {
+			double values[][] = new double[3][stencil*stencil];
+			sampler.readStencil(patchLocations[i][0] + stencil/2, 
+					patchLocations[i][1] + stencil/2, stencil, values);
+			computePatchValues(i, stencil, values);
+		}
+		System.out.println("Color values measured");
+	}
+	
+	// Run ImageMagick and wait until it's done. Throws an IMException if it
+	// can't be started, is stopped after IM_TIMEOUT or fails.
+	private static void runImageMagick(String... command) throws IMException {
+		ProcessRunner.Result result;
+		try {
+			result = ProcessRunner.run(IM_TIMEOUT, command);
+		}
+		catch (IOException err) {
+			throw new IMException(err.getMessage(), err);
 		}
+		catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IMException("Interrupted while running " + command[0], err);
+		}
+		if (result.getExitValue() != 0)
+			throw new IMException(command[0] + " failed: " + result.getErrors().trim());
+	}
+	
+	// Measure the color values using one ImageMagick crop per patch
+	public void measurePatchesIM(int stencil, String filename, String imageMagick,
+			String workingDir) throws IMException {
+		
+		File color = new File(workingDir + "/color.txt");
+		PixelTextParser parser = new PixelTextParser();
 		
 		for (int i = 0; i < numPatches; i++) {
+			// Delete the file of the previous patch, we use the existence of
+			// the file to check if ImageMagick worked correctly
+			color.delete();
+			
 			// Run Imagemagick, the output is stored in color.txt. 
 			// It's impossible to get the result to stdout.
-			try {
-				Process p = Runtime.getRuntime().exec
-				(imageMagick + "convert -crop " + stencil +"x" + stencil + "+" + 
-						(patchLocations[i][0] + stencil/2) + "+" + 
-						(patchLocations[i][1] + stencil/2) + " " + filename + 
-						" +repage " + workingDir + "/color.txt");
-				// Wait until ImageMagick finishes
-				p.waitFor();
-			}
-			catch (Exception err) {
-				err.printStackTrace();
-			}
+			runImageMagick(imageMagick + "convert", "-crop", 
+					stencil +"x" + stencil + "+" + 
+					(patchLocations[i][0] + stencil/2) + "+" + 
+					(patchLocations[i][1] + stencil/2), filename, 
+					"+repage", workingDir + "/color.txt");
 			
 			// If color.txt doesn't exist, throw an exception as this indicates
 			// errors in the file. This is not a pretty solution but I don't 
@@ -519,131 +652,165 @@ public class Measure {
 				throw new IMException();
 			}
 			
-			// Read the color values  from the output file and 
-			// compute the average value.
-			// Delimiters to parse the output
-			String delimiters = "[ .,?!\\(\\)]+";
-			double colors[] = {0,0,0};
-			double stdValues[][] = new double[3][stencil*stencil];
-		    try {
-		      BufferedReader input =  new BufferedReader(
-		    		  new FileReader(workingDir + "/color.txt"));
-		      try {
-		        String line = null; 
-		        int j = 0;
-		        // Read each line and parse the data
-		        while (( line = input.readLine()) != null){
-		        	String[] tokens = null;
-		        	tokens = line.split(delimiters);
-		        	// First line in the file starts with "# ImageMagick pixel..."
-		        	if (!tokens[0].equals("#")) {
-		        		// The first two tokens from each line are coordinates
-		        		// Need to convert the values to Photoshop standard
-		        		if (colorSpace.equals("LAB")) {
-		        			colors[0] += (100.0/255.0)*Double.valueOf(tokens[2]);
-//		        			stdValues[0][j] = (100.0/255.0)*Double.valueOf(tokens[2]);
-		        			stdValues[0][j] = Double.valueOf(tokens[2]);
-
-		        		}
-		        		else {
-		        			colors[0] += Double.valueOf(tokens[2]);
-		        			stdValues[0][j] = Double.valueOf(tokens[2]);
-		        		}
-		        		if (Double.valueOf(tokens[3]) < 128 || colorSpace.equals("RGB")) {
-		        			colors[1] += Double.valueOf(tokens[3]);
-		        			stdValues[1][j] = Double.valueOf(tokens[3]);
-		        		}
-		        		else {
-		        			colors[1] += Double.valueOf(tokens[3])-256;
-		        			stdValues[1][j] = Double.valueOf(tokens[3])-256;
-		        		}
-		        		if (Double.valueOf(tokens[4]) < 128 || colorSpace.equals("RGB")) {
-		        			colors[2] += Double.valueOf(tokens[4]);
-		        			stdValues[2][j] = Double.valueOf(tokens[4]);
-		        		}
-		        		else {
-		        			colors[2] += Double.valueOf(tokens[4])-256;
-		        			stdValues[2][j] = Double.valueOf(tokens[4])-256;
-		        		}
-		        		j++;
-		        	}	        	
-		        }
-		      }
-		      finally {
-		        input.close();
-		      }
-		    }
-		    catch (IOException ex){
-		      ex.printStackTrace();
-		    }
-		    catch (ArrayIndexOutOfBoundsException ex){
-			      ex.printStackTrace();
+			// Read the color values  from the output file
+			double values[][] = new double[3][stencil*stencil];
+			try {
+				parser.parse(workingDir + "/color.txt", values);
+			}
+			catch (IOException ex){
+				ex.printStackTrace();
 			}
-		    
-		    // Compute average color values
-		    for (int j = 0; j < 3; j++) {
-		    	measuredColorValues[i][j] = (double)Math.round(10*colors[j]/(stencil*stencil))/10;
-		    }
-		    
-		    // Measure standard deviation
-		    // Note: only on L-channel! Previously, we used all channel,
-		    // hence the now truncated loop.
-		    double sum = 0;
-		    for (int j = 0; j < 1; j++) {
-		    	 for (int k = 0; k < (stencil*stencil); k++) {
-		    		 // Math.round for debugging!
-		    		 sum += Math.pow(measuredColorValues[i][j]/(100.0/255.0) - stdValues[j][k], 2);
-		    	 }
-		    }
-		    stdDev[i] = (double)Math.round(10*(Math.sqrt(sum/(stencil*stencil))))/10;
+			computePatchValues(i, stencil, values);
 		}
 		System.out.println("Color values measured");
 	}
 	
+	// Compute the average color value and the noise of patch i from the raw 
+	// values of the stencil. The values are given as ImageMagick writes them, 
+	// i.e. 0-255 for each channel.
+	private void computePatchValues(int i, int stencil, double[][] values) {
+		double colors[] = {0,0,0};
+		double stdValues[][] = new double[3][stencil*stencil];
+		for (int j = 0; j < stencil*stencil; j++) {
+			// Need to convert the values to Photoshop standard
+			if (colorSpace.equals("LAB")) {
+				colors[0] += (100.0/255.0)*values[0][j];
+//				stdValues[0][j] = (100.0/255.0)*values[0][j];
+				stdValues[0][j] = values[0][j];
+			}
+			else {
+				colors[0] += values[0][j];
+				stdValues[0][j] = values[0][j];
+			}
+			if (values[1][j] < 128 || colorSpace.equals("RGB")) {
+				colors[1] += values[1][j];
+				stdValues[1][j] = values[1][j];
+			}
+			else {
+				colors[1] += values[1][j]-256;
+				stdValues[1][j] = values[1][j]-256;
+			}
+			if (values[2][j] < 128 || colorSpace.equals("RGB")) {
+				colors[2] += values[2][j];
+				stdValues[2][j] = values[2][j];
+			}
+			else {
+				colors[2] += values[2][j]-256;
+				stdValues[2][j] = values[2][j]-256;
+			}
+		}
+	    
+	    // Compute average color values
+	    for (int j = 0; j < 3; j++) {
+	    	measuredColorValues[i][j] = (double)Math.round(10*colors[j]/(stencil*stencil))/10;
+	    }
+	    
+	    // Measure standard deviation
+	    // Note: only on L-channel! Previously, we used all channel,
+	    // hence the now truncated loop.
+	    double sum = 0;
+	    for (int j = 0; j < 1; j++) {
+	    	 for (int k = 0; k < (stencil*stencil); k++) {
+	    		 // Math.round for debugging!
+	    		 sum += Math.pow(measuredColorValues[i][j]/(100.0/255.0) - stdValues[j][k], 2);
+	    	 }
+	    }
+	    stdDev[i] = (double)Math.round(10*(Math.sqrt(sum/(stencil*stencil))))/10;
+	}
+	
 	// The noise has to be measured in the luminance channel Y
+	// Only the sampled pixels are converted to sRGB. ImageMagick is used to 
+	// convert the whole image if it can't be decoded in-process.
 	public void measurePatchesLAB(int stencil, String filename, String imageMagick,
 			String workingDir) throws IMException {
+		measurePatchesLAB(stencil, filename, imageMagick, workingDir, workingDir);
+	}
+	
+	// The profile is read from workingDir and the temporary files are written 
+	// to scratchDir
+	public void measurePatchesLAB(int stencil, String filename, String imageMagick,
+			String workingDir, String scratchDir) throws IMException {
+		
+		PatchSampler sampler = openSampler(filename);
+		ColorTransform transform = null;
+		try {
+			transform = ColorTransform.getLabTransform(workingDir + "/" + "sRGB.icc");
+		}
+		catch (IOException err) {
+			err.printStackTrace();
+		}
+		if (sampler == null || transform == null) {
+			measurePatchesLABIM(stencil, filename, imageMagick, workingDir, scratchDir);
+			return;
+		}
+		measurePatchesLAB(stencil, sampler, transform);
+	}
+	
+	// Convert the sampled pixels of each patch and store the average value
+	public void measurePatchesLAB(int stencil, PatchSampler sampler, 
+			ColorTransform transform) {
+		double lab[] = new double[3];
+		double rgb[] = new double[3];
+		for (int i = 0; i < numPatches; i++) {
+			double values[][] = new double[3][stencil*stencil];
+			int count = sampler.readStencil(patchLocations[i][0] + stencil/2, 
+					patchLocations[i][1] + stencil/2, stencil, values);
+			double sum[] = {0,0,0};
+			for (int j = 0; j < count; j++) {
+				// RGB images are only assigned the profile, i.e. not converted
+				if (colorSpace.equals("LAB")) {
+					lab[0] = (100.0/255.0)*values[0][j];
+					lab[1] = values[1][j] < 128 ? values[1][j] : values[1][j]-256;
+					lab[2] = values[2][j] < 128 ? values[2][j] : values[2][j]-256;
+					transform.transform(lab, rgb);
+					for (int c = 0; c < 3; c++)
+						sum[c] += 255*rgb[c];
+				}
+				else {
+					for (int c = 0; c < 3; c++)
+						sum[c] += values[c][j];
+				}
+			}
+			for (int c = 0; c < 3; c++) {
+				measuredColorValuesSRGB[i][c] = (double)Math.round(10*sum[c]/(stencil*stencil))/10;
+			}
+		}
+	}
+	
+	// Convert the whole image with ImageMagick and crop each patch
+	public void measurePatchesLABIM(int stencil, String filename, String imageMagick,
+			String workingDir) throws IMException {
+		measurePatchesLABIM(stencil, filename, imageMagick, workingDir, workingDir);
+	}
+	
+	public void measurePatchesLABIM(int stencil, String filename, String imageMagick,
+			String workingDir, String scratchDir) throws IMException {
 		
 		// Build the RGB filename
 		String filenameRGB = "rgb.tif";
 		
-		// Delete old file, we use the existence of the file to 
-		// check if ImageMagick worked correctly
-		// Previously just a slash without color ?!?
-		File color = new File(workingDir + "/color.txt");
-		if (color.exists()){
-			color.delete();
-		}
+		File color = new File(scratchDir + "/color.txt");
+		PixelTextParser parser = new PixelTextParser();
 		
 		// Change to other profile later!!
-		try {
-			Process p = Runtime.getRuntime().exec
-			(imageMagick + "convert " + filename +  " -profile " + workingDir + "/" + "sRGB.icc "  +
-					 workingDir + "/" + filenameRGB);
-			System.out.println(imageMagick + "convert " + filename +  " -profile " + workingDir + "/" + "sRGB.icc "  +
-					 workingDir + "/" + filenameRGB);
-			// Wait until ImageMagick finishes
-			p.waitFor();
-		}
-		catch (Exception err) {
-			err.printStackTrace();
-		}
+		System.out.println(imageMagick + "convert " + filename +  " -profile " + workingDir + "/" + "sRGB.icc "  +
+				 scratchDir + "/" + filenameRGB);
+		runImageMagick(imageMagick + "convert", filename, "-profile", 
+				workingDir + "/" + "sRGB.icc", scratchDir + "/" + filenameRGB);
 		
 		for (int i = 0; i < numPatches; i++) {
+			// Delete the file of the previous patch, we use the existence of
+			// the file to check if ImageMagick worked correctly
+			color.delete();
+			
 			// Run Imagemagick, the output is stored in color.txt. 
-			// It's impossible to get the result to stdout.
-			try {
-				Process p = Runtime.getRuntime().exec
-				(imageMagick + "convert -crop " + stencil +"x" + stencil + "+" + 
-						(patchLocations[i][0] + stencil/2) + "+" + 
-						(patchLocations[i][1] + stencil/2) + " " + workingDir + "/" 
-						+ filenameRGB + " +repage " + workingDir + "/color.txt");
-				// Wait until ImageMagick finishes
-				p.waitFor();
-			}
-			catch (Exception err) {
-				err.printStackTrace();
-			}
+			// It's impossible to get the result to stdout. The values are 
+			// written with 8 bits, the same scale as the in-process conversion.
+			runImageMagick(imageMagick + "convert", "-crop", 
+					stencil +"x" + stencil + "+" + 
+					(patchLocations[i][0] + stencil/2) + "+" + 
+					(patchLocations[i][1] + stencil/2), scratchDir + "/" + filenameRGB, 
+					"+repage", "-depth", "8", scratchDir + "/color.txt");
 			
 			// If color.txt doesn't exist, throw an exception as this indicates
 			// errors in the file. This is not a pretty solution but I don't 
@@ -652,41 +819,21 @@ public class Measure {
 				throw new IMException();
 			}
 			
-			// Read the color values  from the output file and 
-			// compute the values for the standard deviation (noise)
-			// Delimiters to parse the output
-			String delimiters = "[ .,?!\\(\\)]+";
-			double stdValues[][] = new double[3][stencil*stencil];
+			// Read the sRGB values from the output file and store the average
+			// value, as measurePatchesLAB does for the pixels it converts
+			double values[][] = new double[3][stencil*stencil];
+			int count = 0;
 			try {
-				BufferedReader input =  new BufferedReader(
-						new FileReader(workingDir + "/color.txt"));
-				try {
-					String line = null; 
-					int j = 0;
-					// Read each line and parse the data
-					while (( line = input.readLine()) != null){
-						String[] tokens = null;
-						tokens = line.split(delimiters);
-						// First line in the file starts with "# ImageMagick pixel..."
-						if (!tokens[0].equals("#")) {
-							// The first two tokens from each line are coordinates
-
-							stdValues[0][j] = Double.valueOf(tokens[2]);
-							stdValues[1][j] = Double.valueOf(tokens[3]);
-							stdValues[2][j] = Double.valueOf(tokens[4]);
-							j++;
-						}	        	
-					}
-				}
-				finally {
-					input.close();
-		      }
-		    }
-		    catch (IOException ex){
-		      ex.printStackTrace();
-		    }
-		    catch (ArrayIndexOutOfBoundsException ex){
-			      ex.printStackTrace();
+				count = parser.parse(scratchDir + "/color.txt", values);
+			}
+			catch (IOException ex){
+				ex.printStackTrace();
+			}
+			for (int c = 0; c < 3; c++) {
+				double sum = 0;
+				for (int j = 0; j < count; j++)
+					sum += values[c][j];
+				measuredColorValuesSRGB[i][c] = (double)Math.round(10*sum/(stencil*stencil))/10;
 			}
 		}
 	}
@@ -701,501 +848,203 @@ public class Measure {
 	}
 	
 	// Write information to imageData.xml
+	// Write the result to imageDataFilename
 	public void setImageData(int stencil, String imageDataFilename, String imageQuality) 
-		throws ParserConfigurationException, SAXException, IOException, 
-		XPathExpressionException {
-
-	    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-	    domFactory.setNamespaceAware(true); // never forget this!
-	    
-	    DocumentBuilder builder = domFactory.newDocumentBuilder();
-	    Document doc = builder.parse(imageDataFilename);
-	    doc.getDocumentElement().normalize();
-	    XPathFactory factory = XPathFactory.newInstance();
-	    XPath xpath = factory.newXPath();
-	      
-	    // Set measured LAB-values of patches
-	    if (colorSpace.equals("LAB")) {
-	    	XPathExpression expr = xpath.compile("//patch/colorValues/LAB/*");
-	 	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	 	    NodeList nodes = (NodeList) result;
-	    	int j = 0;
-	    	for (int i = 0; i < numPatches*3; i++) {
-	    		nodes.item(i).setTextContent(Double.toString(measuredColorValues[j][0]));
-	    		nodes.item(++i).setTextContent(Double.toString(measuredColorValues[j][1]));
-	    		nodes.item(++i).setTextContent(Double.toString(measuredColorValues[j][2]));
-	    		j++; 
-	    	}
-	    	// Set deltaE
-	    	expr = xpath.compile("//patch/deltaE");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < numPatches; i++) {
-	    		nodes.item(i).setTextContent(Double.toString(deltaE[i]));
-	    	}
-	    
-	    	// Set deltaL
-	    	expr = xpath.compile("//patch/deltaL");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	if (startWithGrayscale == 1) {
-	    		// patchesBeforeChange = 0 when we don't have any color patches 
-	    		// -> more logical description of the target 
-	    		if (patchesBeforeChange == 0)
-	    			patchesBeforeChange = numPatches;
-	    		for (int i = 0; i < patchesBeforeChange; i++) 
-	    			nodes.item(i).setTextContent(Double.toString(deltaL[i]));
-	    		}
-	    	else {
-	    		for (int i = patchesBeforeChange; i < numPatches; i++) 
-	    			nodes.item(i).setTextContent(Double.toString(deltaL[i]));
-	    	}	
-	    
-	    	// Set deltaC
-	    	expr = xpath.compile("//patch/deltaC");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;		
-	    	if (startWithGrayscale == 1) {
-	    		// patchesBeforeChange = 0 when we don't have any color patches 
-	    		// -> more logical description of the target 
-	    		if (patchesBeforeChange == 0)
-	    			patchesBeforeChange = numPatches;
-	    		for (int i = 0; i < patchesBeforeChange; i++) 
-	    			nodes.item(i).setTextContent(Double.toString(deltaC[i]));
-	    		}
-	    	else {
-	    		for (int i = patchesBeforeChange; i < numPatches; i++) 
-	    			nodes.item(i).setTextContent(Double.toString(deltaC[i]));
-	    	}	
-	    		
-	    	// Set maxDeltaE
-	    	expr = xpath.compile("//LAB/maxDeltaE");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(maxDeltaE));
-	    	}
-	    	// Set meanDeltaE
-	    	expr = xpath.compile("//LAB/meanDeltaE");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(meanDeltaE));
-	    	}
-	    	// Set maxDeltaL
-	    	expr = xpath.compile("//LAB/maxDeltaL");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(maxDeltaL));
-	    	}
-	    	// Set meanDeltaL
-	    	expr = xpath.compile("//LAB/meanDeltaL");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(meanDeltaL));
-	    	}
-	    	// Set maxDeltaC
-	    	expr = xpath.compile("//LAB/maxDeltaC");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(maxDeltaC));
-	    	}
-	    	// Set meanDeltaC
-	    	expr = xpath.compile("//LAB/meanDeltaC");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(meanDeltaC));
-	    	}
-	    	
-	    	// Set gainModulation
-		    expr = xpath.compile("//gainModulation/L95-L90");
-		    result = expr.evaluate(doc, XPathConstants.NODESET);
-		    nodes = (NodeList) result;
-		    if (gainModulation[0] > 0)
-		       nodes.item(0).setTextContent(Double.toString(gainModulation[0]));
-		    expr = xpath.compile("//gainModulation/L90-L85");
-		    result = expr.evaluate(doc, XPathConstants.NODESET);
-		    nodes = (NodeList) result;
-		    if (gainModulation[1] > 0)
-		       nodes.item(0).setTextContent(Double.toString(gainModulation[1]));
-		    expr = xpath.compile("//gainModulation/L85-L25");
-		    result = expr.evaluate(doc, XPathConstants.NODESET);
-		    nodes = (NodeList) result;
-		    if (gainModulation[2] > 0)
-		       nodes.item(0).setTextContent(Double.toString(gainModulation[2]));
-		    expr = xpath.compile("//gainModulation/L85-L10");
-		    result = expr.evaluate(doc, XPathConstants.NODESET);
-		    nodes = (NodeList) result;
-		    if (gainModulation[3] > 0)
-		       nodes.item(0).setTextContent(Double.toString(gainModulation[3]));
-	    }
-	    // Set measured RGB values
-	    else {
-	    	XPathExpression expr = xpath.compile("//patch/colorValues/adobeRGB/*");
-	 	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	 	    NodeList nodes = (NodeList) result;
-	    	int j = 0;
-	    	for (int i = 0; i < numPatches; i++) {
-	    		nodes.item(i).setTextContent(Double.toString(measuredColorValues[j][0]));
-	    		nodes.item(++i).setTextContent(Double.toString(measuredColorValues[j][1]));
-	    		nodes.item(++i).setTextContent(Double.toString(measuredColorValues[j][2]));
-	    		j++; 
-	    	}
-	   
-	    	expr = xpath.compile("//deviationRGB/*");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	j = 0;
-	    	for (int i = 0; i < numPatches; i++) {
-	    		nodes.item(i).setTextContent(Integer.toString(deviationRGB[j][0]));
-	    		nodes.item(++i).setTextContent(Integer.toString(deviationRGB[j][1]));
-	    		nodes.item(++i).setTextContent(Integer.toString(deviationRGB[j][2]));
-	    		j++; 
-	    	}
-	    	
-	    	expr = xpath.compile("//RGB/meanDeviation");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Double.toString(meanDeviationRGB));
-	    	} 	
-	    	
-	    	expr = xpath.compile("//RGB/maxDeviation");
-	    	result = expr.evaluate(doc, XPathConstants.NODESET);
-	    	nodes = (NodeList) result;
-	    	for (int i = 0; i < nodes.getLength(); i++) {
-	    		nodes.item(i).setTextContent(Integer.toString(maxDeviationRGB));
-	    	} 	
-	    }
-	    
-	    // Set target name
-	    XPathExpression expr = xpath.compile("//generalData/nameOfTarget");
-	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	    NodeList nodes = (NodeList) result;
-	    nodes.item(0).setTextContent(targetName);
-	    
-	    // Set noise
-    	expr = xpath.compile("//patch/noise");
-    	result = expr.evaluate(doc, XPathConstants.NODESET);
-    	nodes = (NodeList) result;
-    	for (int i = 0; i < numPatches; i++) {
-    		nodes.item(i).setTextContent(Double.toString(stdDev[i]));
-    	}
-	    
-	    // Set date of processing
-	    Calendar cal = Calendar.getInstance();
-	    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-	    expr = xpath.compile("//generalData/dateOfProcessing");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    nodes.item(0).setTextContent(df.format(cal.getTime()));
-	    
-	    // Set image quality
-	    // Image quality is a file name, need to manipulate the string
-	    // to remove the path
-	    int start = 0;
-	    for (int i = 0; i < imageQuality.length(); i++) {
-	    	if (imageQuality.charAt(i)== '/' || imageQuality.charAt(i)=='\\') {
-	    		start = i; 
-	    	}
-	    }
-	    imageQuality = imageQuality.substring(start+1);
-	    expr = xpath.compile("//generalData/qualityLevel");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    nodes.item(0).setTextContent(imageQuality);
-	    
-	    // Set size of the stencil
-	    expr = xpath.compile("//generalData/sizeOfStencil");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	       nodes.item(i).setTextContent(Integer.toString(stencil) + "x" + 
-	    		   Integer.toString(stencil));
-	    }
-	    
-	    // Set the color space
-	    expr = xpath.compile("//generalData/imageColorSpace");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	       nodes.item(i).setTextContent(colorSpace);
-	    }
-	    
-	    // Set the length of the target
-	    expr = xpath.compile("//lengthOfTarget");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	       nodes.item(i).setTextContent(Double.toString(targetLength));
-	    }
-	   
-	    // Set the resolution of the target
-	    expr = xpath.compile("//resolution");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	       nodes.item(i).setTextContent(Double.toString(resolution));
-	    }
-	    
-	    // Write to file
-	    try{ 
-	    	// Delete existing file
-	    	File f = new File(imageDataFilename);
-	    	if (f.exists())
-	    		f.delete();
-	    
-            // Creating new transformer factory
-            javax.xml.transform.TransformerFactory factoryT = 
-                         javax.xml.transform.TransformerFactory.newInstance();
- 
-            // Creating new transformer
-            javax.xml.transform.Transformer transformer = 
-                                                     factoryT.newTransformer();
- 
-            // Creating DomSource with Document you need to write to file
-            javax.xml.transform.dom.DOMSource domSource = 
-                           new javax.xml.transform.dom.DOMSource(doc);
- 
-            // Creating Output Stream to write XML Content
-            java.io.ByteArrayOutputStream bao = 
-                           new java.io.ByteArrayOutputStream();
- 
-            // Transforming domSource and getting out put in output stream
-            transformer.transform(domSource, 
-                       new javax.xml.transform.stream.StreamResult(bao));
- 
-            // writing output stream data to file
-            java.io.FileOutputStream fos = new 
-            	java.io.FileOutputStream(imageDataFilename);
-            fos.write(bao.toByteArray());
-            fos.flush();
-            fos.close();
- 
-        } catch (java.lang.Exception ex) {
-            //TODO: necessary exception handling 
-        }
-	 
+		throws IOException {
+		ImageDataWriter.write(new MeasurementResult(this, stencil), imageDataFilename, 
+				imageQuality);
 	}
 	
 	// Read number of patches from rulerData.xml
 	public void readNumPatches(String targetDataFilename) throws ParserConfigurationException, 
 		SAXException, IOException, XPathExpressionException {
-
-	    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-	    domFactory.setNamespaceAware(true); // never forget this!
-	    
-	    DocumentBuilder builder = domFactory.newDocumentBuilder();
-	    Document doc = builder.parse(targetDataFilename);
-
-	    XPathFactory factory = XPathFactory.newInstance();
-	    XPath xpath = factory.newXPath();
-	    
-	    // Get number of patches
-	    XPathExpression expr = xpath.compile("//numberOfPatches/text()");
-	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	    NodeList nodes = (NodeList) result;
-	    numPatches = Integer.valueOf(nodes.item(0).getNodeValue());
+		numPatches = TargetDefinition.get(targetDataFilename).getNumPatches();
 	    System.out.println("NumPatches read: " + numPatches);
-	    
 	}
 	
 	// Read data from rulerData.xml
 	public void readTargetData(String targetDataFilename) throws ParserConfigurationException, 
 		SAXException, IOException, XPathExpressionException {
-
-	    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-	    domFactory.setNamespaceAware(true); // never forget this!
-	    
-	    DocumentBuilder builder = domFactory.newDocumentBuilder();
-	    Document doc = builder.parse(targetDataFilename);
-
-	    XPathFactory factory = XPathFactory.newInstance();
-	    XPath xpath = factory.newXPath();
-	    
-	    // Read LAB-values
-	    // Get L-values
-	    XPathExpression expr 
-	     = xpath.compile("//LAB/L/text()");
-	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	    NodeList nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesLAB[i][0] = Double.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get A-values
-	    expr = xpath.compile("//LAB/A/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesLAB[i][1] = Double.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get B-values
-	    expr = xpath.compile("//LAB/B/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesLAB[i][2] = Double.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    System.out.println("Reference color values read (LAB)");
-	    
-	    // Read RGB-values
-	    // Get R-values
-	    expr = xpath.compile("//adobeRGB/R/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesRGB[i][0] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get G-values
-	    expr = xpath.compile("//adobeRGB/G/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesRGB[i][1] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get B-values
-	    expr = xpath.compile("//adobeRGB/B/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        referenceColorValuesRGB[i][2] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    System.out.println("Reference color values read (RGB)");
-	 
-	    // Get startWithGrayscale
-	    expr = xpath.compile("//generalData/startWithGrayscale/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    startWithGrayscale = Integer.valueOf(nodes.item(0).getNodeValue());
-	
-	    // Get startWithGrayscale
-	    expr = xpath.compile("//generalData/patchesBeforeChange/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    patchesBeforeChange = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get size of target
-	    expr = xpath.compile("//sizeRealWorld/X/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    targetSizeOriginal[0] = Double.valueOf(nodes.item(0).getNodeValue());
-	    expr = xpath.compile("//sizeRealWorld/Y/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    targetSizeOriginal[1] = Double.valueOf(nodes.item(0).getNodeValue());
+		// The target data is parsed once per batch
+		setTargetData(TargetDefinition.get(targetDataFilename));
+	}
+	
+	private void setTargetData(TargetDefinition target) {
+		for (int i = 0; i < numPatches; i++) {
+			for (int j = 0; j < 3; j++) {
+				referenceColorValuesLAB[i][j] = target.getReferenceLAB(i, j);
+				referenceColorValuesRGB[i][j] = target.getReferenceRGB(i, j);
+			}
+			relativePatchCenters[i][0] = target.getRelativeCenter(i, 0);
+			relativePatchCenters[i][1] = target.getRelativeCenter(i, 1);
+		}
+		startWithGrayscale = target.getStartWithGrayscale();
+		patchesBeforeChange = target.getPatchesBeforeChange();
+		targetSizeOriginal[0] = target.getSizeRealWorld(0);
+		targetSizeOriginal[1] = target.getSizeRealWorld(1);
 	    System.out.println("Target size: " + targetSizeOriginal[0] + "x" +
 	    		targetSizeOriginal[1] + " cm");
-	    
-	    // Get L*95
-	    expr = xpath.compile("//gainModulation/L95/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[0] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*90
-	    expr = xpath.compile("//gainModulation/L90/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[1] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*85
-	    expr = xpath.compile("//gainModulation/L85/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[2] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*80
-	    expr = xpath.compile("//gainModulation/L80/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[3] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*25
-	    expr = xpath.compile("//gainModulation/L25/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[4] = Integer.valueOf(nodes.item(0).getNodeValue());
-
-	    // Get L*20
-	    expr = xpath.compile("//gainModulation/L20/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[5] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*10
-	    expr = xpath.compile("//gainModulation/L10/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[6] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get L*5
-	    expr = xpath.compile("//gainModulation/L5/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    gainModulationPatches[7] = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Get target name
-	    expr = xpath.compile("//generalData/name/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    targetName = String.valueOf(nodes.item(0).getNodeValue());
+		targetSizeInPixels[0] = target.getSizeInPixels(0);
+		targetSizeInPixels[1] = target.getSizeInPixels(1);
+		for (int i = 0; i < 8; i++)
+			gainModulationPatches[i] = target.getGainModulationPatch(i);
+		targetName = target.getName();
 	}
 	
 	// Read data from imageData.xml
 	public void readImageData(String imageDataFilename) throws 
 		ParserConfigurationException, SAXException, IOException, 
 		XPathExpressionException {
-
-	    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-	    domFactory.setNamespaceAware(true); // never forget this!
-	    
-	    DocumentBuilder builder = domFactory.newDocumentBuilder();
-	    Document doc = builder.parse(imageDataFilename);
-
-	    XPathFactory factory = XPathFactory.newInstance();
-	    XPath xpath = factory.newXPath();
-	    
-	    // Get x-values of patches
-	    XPathExpression expr 
-	     = xpath.compile("//patchData/patch/center/X/text()");
-	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	    NodeList nodes = (NodeList) result;
-	    for (int i = 0; i < numPatches; i++) {
-	        patchLocations[i][0] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get y-values of patches
-	    expr = xpath.compile("//patchData/patch/center/Y/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < numPatches; i++) {
-	        patchLocations[i][1] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
+		ImageData data = ImageData.read(imageDataFilename);
+		if (data.getNumPatches() < numPatches)
+			throw new IOException("Too few patches in " + imageDataFilename);
+		for (int i = 0; i < numPatches; i++) {
+			patchLocations[i][0] = data.getPatchLocation(i, 0);
+			patchLocations[i][1] = data.getPatchLocation(i, 1);
+		}
 	    System.out.println("Patch positions read from file");
-	    
-	    // Get x-values of target position
-	    expr = xpath.compile("//corner/X/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        targetLocation[i][0] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get y-values of target position
-	    expr = xpath.compile("//corner/Y/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        targetLocation[i][1] = Integer.valueOf(nodes.item(i).getNodeValue());
-	    }
+		for (int i = 0; i < data.getNumCorners() && i < targetLocation.length; i++) {
+			targetLocation[i][0] = data.getCorner(i, 0);
+			targetLocation[i][1] = data.getCorner(i, 1);
+		}
+		targetUpsideDown = data.isTargetUpsideDown();
+	}
+	
+	// Locate the target in the image and compute the patch locations. The
+	// target is located in-process, Find is only used if that fails.
+	public void locateTarget(String imageName, String targetName, 
+			String imageDataFilename, String targetDataFilename, String outputImage, 
+			String find) throws FindException, ParserConfigurationException, 
+			SAXException, IOException, XPathExpressionException {
+		System.out.println("Locating the target");
+		TargetLocation location = null;
+		PatchSampler image = openSampler(imageName);
+		// The keypoints of the target are extracted once for the whole batch
+		Features target = null;
+		try {
+			target = TargetFeatureCache.get(targetName, targetDataFilename);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		String key = null;
+		if (image != null) {
+			key = targetName + "|" + targetDataFilename + "|" + image.getWidth() + "x" + 
+				image.getHeight();
+			// Use the location in the previous image if the patches are still there
+			TargetLocation previous = previousLocations.get(key);
+			if (previous != null && verifyLocation(previous, image)) {
+				System.out.println("Target found at the previous position");
+				location = previous;
+				if (outputImage != null)
+					TargetLocator.savePreview(image, colorSpace.equals("LAB"), location, 
+							outputImage);
+			}
+		}
+		if (location == null && image != null && target != null) {
+			location = TargetLocator.locate(target, image, colorSpace.equals("LAB"), 
+					relativePatchCenters, targetSizeInPixels[0], targetSizeInPixels[1], 
+					outputImage);
+			if (location != null)
+				previousLocations.put(key, location);
+		}
+		
+		if (location == null && find != null && new File(find).exists()) {
+			// Find is kept running between images if it has a worker mode. A
+			// worker that fails or doesn't reply in time is stopped, and Find
+			// is then started for this image.
+			FindWorker worker = FindWorker.get(find);
+			boolean located = false;
+			if (worker != null) {
+				try {
+					location = worker.locate(FIND_TIMEOUT, targetName, imageName, 
+							targetDataFilename, outputImage);
+					located = true;
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (!located) {
+				computePatchLocation(imageName, imageDataTemplateFilename, imageDataFilename, 
+						targetName, targetDataFilename, outputImage, find);
+				readImageData(imageDataFilename);
+				return;
+			}
+			if (location != null && key != null)
+				previousLocations.put(key, location);
+		}
+		
+		if (location != null) {
+			setTargetLocation(location);
+			System.out.println("Patch locations computed");
+		}
+		else
+			throw new FindException("Unable to find the target in the image");
+	}
+	
+	// Locate the target in an image that is already decoded, only in-process
+	// (see MeasurementEngine). The image is also used by measurePatches().
+	public void locateTarget(Features target, PatchSampler image) throws FindException {
+		TargetLocation location = TargetLocator.locate(target, image, 
+				colorSpace.equals("LAB"), relativePatchCenters, targetSizeInPixels[0], 
+				targetSizeInPixels[1], null);
+		if (location == null)
+			throw new FindException("Unable to find the target in the image");
+		setTargetLocation(location);
+	}
+	
+	// Check that the patches are found at the given location. A few patches 
+	// with clearly different reference L-values are read and their luminance 
+	// must be in the same order as the reference values. Each patch must also 
+	// be uniform, which rules out a target that has moved.
+	private boolean verifyLocation(TargetLocation location, PatchSampler image) {
+		if (location.getNumPatches() != numPatches)
+			return false;
+		
+		// Patches sorted by the reference L-value
+		Integer[] order = new Integer[numPatches];
+		for (int i = 0; i < numPatches; i++)
+			order[i] = i;
+		java.util.Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(referenceColorValuesLAB[a][0], 
+						referenceColorValuesLAB[b][0]);
+			}
+		});
+		int[] checked = new int[VERIFY_PATCHES];
+		int n = 0;
+		for (int i = 0; i < numPatches && n < VERIFY_PATCHES; i++) {
+			if (n == 0 || referenceColorValuesLAB[order[i]][0] - 
+					referenceColorValuesLAB[checked[n-1]][0] >= VERIFY_MIN_DELTA_L)
+				checked[n++] = order[i];
+		}
+		if (n < 3)
+			return false;
+		
+		boolean lab = colorSpace.equals("LAB");
+		double[][] values = new double[3][VERIFY_STENCIL*VERIFY_STENCIL];
+		double last = -1;
+		for (int k = 0; k < n; k++) {
+			int[] center = location.getPatches()[checked[k]];
+			int count = image.readStencil(center[0] + VERIFY_STENCIL/2, 
+					center[1] + VERIFY_STENCIL/2, VERIFY_STENCIL, values);
+			if (count < VERIFY_STENCIL*VERIFY_STENCIL)
+				return false;
+			double sum = 0, sumSquares = 0;
+			for (int j = 0; j < count; j++) {
+				double l = lab ? values[0][j] : 
+					0.299*values[0][j] + 0.587*values[1][j] + 0.114*values[2][j];
+				sum += l;
+				sumSquares += l*l;
+			}
+			double mean = sum/count;
+			double stdDev = Math.sqrt(Math.max(0, sumSquares/count - mean*mean));
+			if (stdDev > VERIFY_MAX_STD_DEV || mean <= last)
+				return false;
+			last = mean;
+		}
+		return true;
 	}
 	
 	// Run the C program that computes the patch locations
@@ -1206,27 +1055,22 @@ public class Measure {
 		int findResult=0;
 		/*System.out.println(find + " " + targetName + " " + imageName + " " + dataName + " " + 
 				imageDataTemplateFilename + " " + imageDataFilename);*/
-		String line = new String();
 		try {
 			System.out.println("Calling 'Find' to compute the patch locations");
-			Process p = Runtime.getRuntime().exec
-			(find + " " + targetName + " " + imageName + " " + dataName + " " + 
-					imageDataTemplateFilename + " " + imageDataFilename + " " +
+			ProcessRunner.Result result = ProcessRunner.run(FIND_TIMEOUT, find, targetName, 
+					imageName, dataName, imageDataTemplateFilename, imageDataFilename, 
 					outputImage);
-			
-			BufferedReader input =
-				new BufferedReader
-				(new InputStreamReader(p.getInputStream()));
-			while ((line = input.readLine()) != null) {
-				System.out.println(line);
-			}			
-			input.close();
-			findResult = p.waitFor();
+			System.out.print(result.getOutput());
+			System.out.print(result.getErrors());
+			findResult = result.getExitValue();
 		}
 		catch (Exception err) {
+			// Find didn't start or was stopped
 			err.printStackTrace();
+			findResult = -1;
 		}
-		if (findResult == -1)
+		// Find returns -1 on errors, which is 255 on Mac and Linux
+		if (findResult == -1 || findResult == 255)
 			throw new FindException();
 		System.out.println("Patch locations computed");
 	}
@@ -1285,6 +1129,50 @@ public class Measure {
 	public double getMeanDeltaE() {
 		return meanDeltaE;
 	}
+
+	public double getMaxDeltaE() {
+		return maxDeltaE;
+	}
+	
+	public double getMeanDeltaL() {
+		return meanDeltaL;
+	}
+	
+	public double getMaxDeltaL() {
+		return maxDeltaL;
+	}
+	
+	public double getMeanDeltaC() {
+		return meanDeltaC;
+	}
+	
+	public double getMaxDeltaC() {
+		return maxDeltaC;
+	}
+	
+	public double getMeanDeviationRGB() {
+		return meanDeviationRGB;
+	}
+	
+	public int getMaxDeviationRGB() {
+		return maxDeviationRGB;
+	}
+	
+	public double getTargetLength() {
+		return targetLength;
+	}
+	
+	public int getPatchLocation(int i, int j) {
+		return patchLocations[i][j];
+	}
+	
+	public int getTargetCorner(int i, int j) {
+		return targetLocation[i][j];
+	}
+	
+	public boolean isTargetUpsideDown() {
+		return targetUpsideDown;
+	}
 	
 	public double getDeltaC(int i) {
 		return deltaC[i];
@@ -1294,6 +1182,22 @@ public class Measure {
 		return stdDev[i];
 	}
 	
+	public double[][] getRelativePatchCenters() {
+		return relativePatchCenters;
+	}
+	
+	public int getTargetSizeInPixels(int i) {
+		return targetSizeInPixels[i];
+	}
+	
+	public String getTargetName() {
+		return targetName;
+	}
+	
+	public double getMeasuredColorValueSRGB(int i, int j) {
+		return measuredColorValuesSRGB[i][j];
+	}
+	
 	public static void main(String[] args) throws XPathExpressionException, 
 		ParserConfigurationException, SAXException, IOException, IMException,
 		FindException{
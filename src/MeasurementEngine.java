@@ -0,0 +1,84 @@
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.io.IOException;
+
+// Measures a target in images that are already decoded, for programs that use
+// Colorite as a library. Nothing is read from or written to files and no other
+// programs are started: the target is a TargetDefinition (see
+// TargetDefinition.parse()) and the decoded target image, the images are
+// Rasters or arrays of pixels, and the target is located in-process. The
+// result is a MeasurementResult.
+//
+// The engine only keeps the target, each image is measured in a Measure of its
+// own, so one engine can measure images in many threads at the same time
+// without locking.
+//
+// Bands 0-2 of an image are R, G and B, or L, a and b coded as in a CIELab
+// TIFF: L from 0 to 255 (or 65535) and a and b as signed values.
+public class MeasurementEngine {
+
+	public static final int DEFAULT_STENCIL = 5;
+
+	private final TargetDefinition target;
+	private final Features targetFeatures;
+	private final ColorTransform transform;
+
+	// The keypoints of the target image are extracted here, once
+	public MeasurementEngine(TargetDefinition target, Raster targetImage) throws IOException {
+		this(target, TargetLocator.extractTargetFeatures(new PatchSampler(targetImage)),
+				ColorTransform.getLabTransform(null));
+	}
+
+	// The keypoints of the target, e.g. from TargetFeatureCache, and the
+	// transform from LAB to the RGB values of LAB images (null for sRGB)
+	public MeasurementEngine(TargetDefinition target, Features targetFeatures,
+			ColorTransform transform) throws IOException {
+		this.target = target;
+		this.targetFeatures = targetFeatures;
+		this.transform = transform != null ? transform : ColorTransform.getLabTransform(null);
+	}
+
+	public MeasurementResult measure(Raster image, boolean lab) throws FindException {
+		return measure(image, lab, DEFAULT_STENCIL);
+	}
+
+	public MeasurementResult measure(Raster image, boolean lab, int stencil)
+		throws FindException {
+		if (image.getNumBands() < 3)
+			throw new IllegalArgumentException("The image must have three bands");
+		if (stencil < 1)
+			throw new IllegalArgumentException("Invalid stencil " + stencil);
+		Measure measure = new Measure(target, lab ? "LAB" : "RGB");
+		PatchSampler sampler = new PatchSampler(image);
+		measure.locateTarget(targetFeatures, sampler);
+		measure.computeResolution();
+		measure.measurePatches(stencil, sampler);
+		measure.computeMeasures();
+		measure.measurePatchesLAB(stencil, sampler, transform);
+		return new MeasurementResult(measure, stencil);
+	}
+
+	// 8-bit pixels with three samples per pixel, row by row
+	public MeasurementResult measure(byte[] pixels, int width, int height, boolean lab,
+			int stencil) throws FindException {
+		checkSize(pixels.length, width, height);
+		return measure(Raster.createInterleavedRaster(
+				new DataBufferByte(pixels, pixels.length), width, height, 3*width, 3,
+				new int[] {0, 1, 2}, null), lab, stencil);
+	}
+
+	// 16-bit pixels with three samples per pixel, row by row
+	public MeasurementResult measure(short[] pixels, int width, int height, boolean lab,
+			int stencil) throws FindException {
+		checkSize(pixels.length, width, height);
+		return measure(Raster.createInterleavedRaster(
+				new DataBufferUShort(pixels, pixels.length), width, height, 3*width, 3,
+				new int[] {0, 1, 2}, null), lab, stencil);
+	}
+
+	private static void checkSize(int length, int width, int height) {
+		if (width < 1 || height < 1 || (long) 3*width*height > length)
+			throw new IllegalArgumentException("Too few pixels for " + width + "x" + height);
+	}
+}
@@ -0,0 +1,211 @@
+// The measurement of one target in one image, as returned by MeasurementEngine
+// and written to the imageData XML file (see ImageDataWriter). The values are
+// copied from the Measure when the result is created and the result never
+// changes, so it can be kept and shared between threads.
+public class MeasurementResult {
+
+	private final String targetName;
+	private final String colorSpace;
+	private final int stencil;
+	private final int numPatches;
+	private final int[][] corners;
+	private final boolean upsideDown;
+	private final int[][] patchLocations;
+	private final double[][] colorValues;
+	private final double[][] colorValuesSRGB;
+	private final double[][] referenceColorValues;
+	private final double[] noise;
+	private final double[] deltaE;
+	private final double[] deltaL;
+	private final double[] deltaC;
+	private final int[][] deviationRGB;
+	private final boolean[] grayscale;
+	private final double[] gainModulation;
+	private final double targetLength;
+	private final double resolution;
+	private final double maxDeltaE;
+	private final double meanDeltaE;
+	private final double maxDeltaL;
+	private final double meanDeltaL;
+	private final double maxDeltaC;
+	private final double meanDeltaC;
+	private final int maxDeviationRGB;
+	private final double meanDeviationRGB;
+
+	public MeasurementResult(Measure measure, int stencil) {
+		this.stencil = stencil;
+		targetName = measure.getTargetName();
+		colorSpace = measure.getColorSpace();
+		numPatches = measure.getNumPatches();
+		corners = new int[4][2];
+		for (int i = 0; i < 4; i++) {
+			corners[i][0] = measure.getTargetCorner(i, 0);
+			corners[i][1] = measure.getTargetCorner(i, 1);
+		}
+		upsideDown = measure.isTargetUpsideDown();
+
+		boolean lab = isLAB();
+		patchLocations = new int[numPatches][2];
+		colorValues = new double[numPatches][3];
+		colorValuesSRGB = new double[numPatches][3];
+		referenceColorValues = new double[numPatches][3];
+		noise = new double[numPatches];
+		deltaE = new double[numPatches];
+		deltaL = new double[numPatches];
+		deltaC = new double[numPatches];
+		deviationRGB = new int[numPatches][3];
+		grayscale = new boolean[numPatches];
+		for (int i = 0; i < numPatches; i++) {
+			patchLocations[i][0] = measure.getPatchLocation(i, 0);
+			patchLocations[i][1] = measure.getPatchLocation(i, 1);
+			for (int j = 0; j < 3; j++) {
+				colorValues[i][j] = measure.getMeasuredColorValue(i, j);
+				colorValuesSRGB[i][j] = measure.getMeasuredColorValueSRGB(i, j);
+				referenceColorValues[i][j] = measure.getReferenceColorValue(i, j);
+				if (!lab)
+					deviationRGB[i][j] = measure.getDeviationRGB(i, j);
+			}
+			noise[i] = measure.getStdDev(i);
+			// deltaL and deltaC are only computed for the grayscale patches
+			grayscale[i] = measure.isGrayscalePatch(i);
+			if (lab) {
+				deltaE[i] = measure.getDeltaE(i);
+				if (grayscale[i]) {
+					deltaL[i] = measure.getDeltaL(i);
+					deltaC[i] = measure.getDeltaC(i);
+				}
+			}
+		}
+
+		gainModulation = new double[4];
+		for (int i = 0; i < 4 && lab; i++)
+			gainModulation[i] = measure.getGM(i);
+		targetLength = measure.getTargetLength();
+		resolution = measure.getResolution();
+		maxDeltaE = lab ? measure.getMaxDeltaE() : 0;
+		meanDeltaE = lab ? measure.getMeanDeltaE() : 0;
+		maxDeltaL = lab ? measure.getMaxDeltaL() : 0;
+		meanDeltaL = lab ? measure.getMeanDeltaL() : 0;
+		maxDeltaC = lab ? measure.getMaxDeltaC() : 0;
+		meanDeltaC = lab ? measure.getMeanDeltaC() : 0;
+		maxDeviationRGB = lab ? 0 : measure.getMaxDeviationRGB();
+		meanDeviationRGB = lab ? 0 : measure.getMeanDeviationRGB();
+	}
+
+	public String getTargetName() {
+		return targetName;
+	}
+
+	// "LAB" or "RGB"
+	public String getColorSpace() {
+		return colorSpace;
+	}
+
+	public boolean isLAB() {
+		return colorSpace.equals("LAB");
+	}
+
+	public int getStencil() {
+		return stencil;
+	}
+
+	public int getNumPatches() {
+		return numPatches;
+	}
+
+	// Corner i (0-3) of the target, j is 0 for x and 1 for y
+	public int getTargetCorner(int i, int j) {
+		return corners[i][j];
+	}
+
+	public boolean isTargetUpsideDown() {
+		return upsideDown;
+	}
+
+	public int getPatchLocation(int i, int j) {
+		return patchLocations[i][j];
+	}
+
+	// L, a and b of an LAB image, R, G and B of an RGB image
+	public double getMeasuredColorValue(int i, int j) {
+		return colorValues[i][j];
+	}
+
+	public double getMeasuredColorValueSRGB(int i, int j) {
+		return colorValuesSRGB[i][j];
+	}
+
+	public double getReferenceColorValue(int i, int j) {
+		return referenceColorValues[i][j];
+	}
+
+	public double getNoise(int i) {
+		return noise[i];
+	}
+
+	// True for the patches that have deltaL and deltaC
+	public boolean isGrayscalePatch(int i) {
+		return grayscale[i];
+	}
+
+	public double getDeltaE(int i) {
+		return deltaE[i];
+	}
+
+	public double getDeltaL(int i) {
+		return deltaL[i];
+	}
+
+	public double getDeltaC(int i) {
+		return deltaC[i];
+	}
+
+	public int getDeviationRGB(int i, int j) {
+		return deviationRGB[i][j];
+	}
+
+	// The four gain modulations of an LAB image, 0 if they aren't computed
+	public double getGM(int i) {
+		return gainModulation[i];
+	}
+
+	public double getTargetLength() {
+		return targetLength;
+	}
+
+	public double getResolution() {
+		return resolution;
+	}
+
+	public double getMaxDeltaE() {
+		return maxDeltaE;
+	}
+
+	public double getMeanDeltaE() {
+		return meanDeltaE;
+	}
+
+	public double getMaxDeltaL() {
+		return maxDeltaL;
+	}
+
+	public double getMeanDeltaL() {
+		return meanDeltaL;
+	}
+
+	public double getMaxDeltaC() {
+		return maxDeltaC;
+	}
+
+	public double getMeanDeltaC() {
+		return meanDeltaC;
+	}
+
+	public int getMaxDeviationRGB() {
+		return maxDeviationRGB;
+	}
+
+	public double getMeanDeviationRGB() {
+		return meanDeviationRGB;
+	}
+}
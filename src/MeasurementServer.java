@@ -0,0 +1,349 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Measures images on request over HTTP, without a GUI, so that another program
+// can measure one image at a time without starting Colorite for each image.
+// Started with "--server" (or "--server=<port>"), the targets and quality
+// levels are those of config.txt. The targets, their keypoints, the color
+// transforms and Find are loaded once and kept between requests. The server
+// only listens on the local machine. A posted image may be at most 1 GB, or
+// the number of MB given with "--max-upload=<MB>".
+//
+//   GET  /targets
+//        The ids of the targets, e.g. {"targets":["CC_mini","Q13_Kodak1"]}
+//   GET  /measure?image=<path>&target=<id>&quality=<level>&stencil=<size>
+//   POST /measure?name=<filename>&target=<id>&quality=<level>&stencil=<size>
+//        Measure an image file, or the image that is posted (name gives the
+//        type of the image, e.g. scan.tif). The result is the imageData as
+//        JSON. The target may be left out if there's only one, the quality
+//        level is e.g. 2 for qualityLevel2.xml and the stencil is 5 by
+//        default. Errors are returned as {"error":"..."}, a posted image
+//        that is too large is answered with 413.
+public class MeasurementServer {
+
+	public static final int DEFAULT_PORT = 8642;
+	public static final long DEFAULT_MAX_UPLOAD = 1L << 30;
+
+	// A posted image that is too large
+	private static class UploadTooLargeException extends IOException {
+		UploadTooLargeException(long max) {
+			super("The image is larger than " + max + " bytes");
+		}
+	}
+
+	private String workingDir = System.getProperty("user.dir");
+	private String imageDataTemplateFilename;
+	private String find;
+	private String imageMagick;
+	private String qualityData;
+	// The image and the target data of each target
+	private Map<String, String[]> targets = new LinkedHashMap<String, String[]>();
+	private File scratch;
+	private long maxUpload = DEFAULT_MAX_UPLOAD;
+
+	public MeasurementServer() throws IOException {
+		String[] config = readLines(workingDir + "/config.txt");
+		String[] programLocations = readLines(workingDir + "/programLocations.txt");
+		if (config.length < 5 || programLocations.length < 4)
+			throw new IOException("config.txt or programLocations.txt is incomplete");
+		imageDataTemplateFilename = programLocations[0];
+		find = programLocations[2];
+		imageMagick = programLocations[3];
+		qualityData = config[4];
+
+		// A directory is a library of targets, otherwise the targets are
+		// separated with ';'
+		if (new File(config[1]).isDirectory()) {
+			TargetLibrary library = TargetLibrary.get(config[1]);
+			for (int i = 0; i < library.size(); i++)
+				addTarget(library.getTargetName(i), library.getTargetDataFilename(i));
+		}
+		else {
+			String[] targetImages = config[1].split(";");
+			String[] targetDatas = config[2].split(";");
+			for (int i = 0; i < targetImages.length && i < targetDatas.length; i++)
+				addTarget(targetImages[i], targetDatas[i]);
+		}
+		ImageQuality.get(qualityData);
+		ColorTransform.getLabTransform(workingDir + "/" + "sRGB.icc");
+		scratch = Files.createTempDirectory("colorite-server").toFile();
+	}
+
+	// The id of a target is its file name without the extension
+	private void addTarget(String targetImage, String targetData) throws IOException {
+		String name = new File(targetImage).getName();
+		int dot = name.lastIndexOf('.');
+		String id = dot > 0 ? name.substring(0, dot) : name;
+		TargetDefinition.get(targetData);
+		TargetFeatureCache.get(targetImage, targetData);
+		targets.put(id, new String[] {targetImage, targetData});
+		System.out.println("Target " + id + " loaded");
+	}
+
+	// The largest image that may be posted, in bytes
+	public void setMaxUpload(long maxUpload) {
+		this.maxUpload = maxUpload;
+	}
+
+	public void start(int port) throws IOException {
+		HttpServer server = HttpServer.create(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// One request per processor is measured at a time, the others wait
+		final ExecutorService executor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		server.setExecutor(executor);
+		server.createContext("/targets", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (allowed(exchange, "GET"))
+					send(exchange, 200, ImageDataJson.list("targets", targets.keySet()));
+			}
+		});
+		server.createContext("/measure", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				if (allowed(exchange, "GET", "POST"))
+					measure(exchange);
+			}
+		});
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				delete(scratch);
+			}
+		});
+		System.out.println("Colorite is listening on http://localhost:" +
+				server.getAddress().getPort() + "/");
+	}
+
+	private void measure(HttpExchange exchange) throws IOException {
+		File job = null;
+		try {
+			Map<String, String> query = parseQuery(exchange.getRequestURI());
+			String[] target = target(query.get("target"));
+			String quality = quality(query.get("quality"));
+			int stencil = 5;
+			if (query.containsKey("stencil")) {
+				String size = query.get("stencil");
+				stencil = size.matches("[0-9]{1,3}") ? Integer.parseInt(size) : 0;
+				if (stencil < 1)
+					throw new IllegalArgumentException("Invalid stencil " + size);
+			}
+			job = Files.createTempDirectory(scratch.toPath(), "job").toFile();
+
+			String image;
+			if (exchange.getRequestMethod().equals("POST")) {
+				String name = query.containsKey("name") ? query.get("name") : "image.tif";
+				if (!Setup.isImageType(name))
+					throw new IllegalArgumentException("Unsupported image type " + name);
+				// The length isn't always given, the copy is limited too
+				String length = exchange.getRequestHeaders().getFirst("Content-Length");
+				if (length != null && length.matches("[0-9]{1,18}") &&
+						Long.parseLong(length) > maxUpload)
+					throw new UploadTooLargeException(maxUpload);
+				File upload = new File(job, "image" + name.substring(name.lastIndexOf('.')));
+				save(exchange.getRequestBody(), upload, maxUpload);
+				image = upload.getPath();
+			}
+			else {
+				image = query.get("image");
+				if (image == null || !new File(image).isFile())
+					throw new IllegalArgumentException("No image " + image);
+				if (!Setup.isImageType(image))
+					throw new IllegalArgumentException("Unsupported image type " + image);
+			}
+
+			// The same stages as a batch, with the temporary files of the
+			// request in its own directory
+			long start = System.currentTimeMillis();
+			Measure measure = new Measure(image, imageDataTemplateFilename, target[1],
+					imageMagick);
+			PatchSampler sampler = PatchSampler.open(image);
+			if (sampler != null)
+				measure.setSampler(sampler, image);
+			measure.locateTarget(image, target[0], job + "/imageData.xml", target[1],
+					job + "/output.png", find);
+			measure.computeResolution();
+			measure.measurePatches(stencil, image, imageMagick, workingDir, job.getPath());
+			measure.computeMeasures();
+			measure.measurePatchesLAB(stencil, image, imageMagick, workingDir,
+					job.getPath());
+			send(exchange, 200, ImageDataJson.write(new MeasurementResult(measure, stencil),
+					quality));
+			System.out.println("Measured " + image + " in " +
+					(System.currentTimeMillis() - start) + " ms");
+		}
+		catch (IllegalArgumentException e) {
+			send(exchange, 400, ImageDataJson.field("error", e.getMessage()));
+		}
+		catch (UploadTooLargeException e) {
+			send(exchange, 413, ImageDataJson.field("error", e.getMessage()));
+		}
+		catch (IMException e) {
+			send(exchange, 422, ImageDataJson.field("error", e.toString()));
+		}
+		catch (FindException e) {
+			send(exchange, 422, ImageDataJson.field("error", e.toString()));
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			send(exchange, 500, ImageDataJson.field("error", e.toString()));
+		}
+		finally {
+			if (job != null)
+				delete(job);
+		}
+	}
+
+	// Answers 405 if the method of the request isn't one of methods
+	private static boolean allowed(HttpExchange exchange, String... methods)
+		throws IOException {
+		for (String method : methods) {
+			if (exchange.getRequestMethod().equals(method))
+				return true;
+		}
+		exchange.getResponseHeaders().set("Allow", String.join(", ", methods));
+		send(exchange, 405, ImageDataJson.field("error", "Method " +
+				exchange.getRequestMethod() + " not allowed"));
+		return false;
+	}
+
+	private String[] target(String id) {
+		if (id == null && targets.size() == 1)
+			return targets.values().iterator().next();
+		String[] target = targets.get(id);
+		if (target == null)
+			throw new IllegalArgumentException("Unknown target " + id);
+		return target;
+	}
+
+	// A level is a qualityLevel<level>.xml next to the quality level of
+	// config.txt
+	private String quality(String level) throws IOException {
+		if (level == null)
+			return qualityData;
+		if (!level.matches("[A-Za-z0-9_-]+"))
+			throw new IllegalArgumentException("Invalid quality level " + level);
+		File file = new File(new File(qualityData).getAbsoluteFile().getParentFile(),
+				"qualityLevel" + level + ".xml");
+		if (!file.isFile())
+			throw new IllegalArgumentException("Unknown quality level " + level);
+		ImageQuality.get(file.getPath());
+		return file.getPath();
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> query = new HashMap<String, String>();
+		String raw = uri.getRawQuery();
+		if (raw == null)
+			return query;
+		for (String parameter : raw.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals > 0)
+				query.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+						URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	private static void send(HttpExchange exchange, int status, String json)
+		throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// Save a posted image of at most max bytes
+	private static void save(InputStream in, File file, long max) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			byte[] buffer = new byte[64*1024];
+			long total = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				total += n;
+				if (total > max)
+					throw new UploadTooLargeException(max);
+				out.write(buffer, 0, n);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static String[] readLines(String filename) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(filename)));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		}
+		finally {
+			in.close();
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		file.delete();
+	}
+
+	// Started from Setup.main with --server or --server=<port>, and optionally
+	// --max-upload=<MB>. Setup itself is a window and isn't created.
+	public static void run(String[] args) {
+		// No windows are shown, and no display is needed
+		System.setProperty("java.awt.headless", "true");
+		int port = DEFAULT_PORT;
+		long maxUpload = DEFAULT_MAX_UPLOAD;
+		for (String arg : args) {
+			if (arg.startsWith("--server="))
+				port = Integer.parseInt(arg.substring(9));
+			else if (arg.startsWith("--max-upload="))
+				maxUpload = Long.parseLong(arg.substring(13))*1024*1024;
+		}
+		try {
+			MeasurementServer server = new MeasurementServer();
+			server.setMaxUpload(maxUpload);
+			server.start(port);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
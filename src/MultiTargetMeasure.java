@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.SAXException;
+
+// Measures several targets (e.g. a ColorChecker and a Q13 grayscale) in the
+// same image. The image is decoded once, its keypoints are extracted once for
+// all targets and the patches of the targets are then measured concurrently.
+// Only images that PatchSampler decodes can be measured this way. DNG files,
+// YCbCr, ICCLab and ITULab TIFFs, TIFFs whose first image is a preview and
+// floating point images are measured through ImageMagick, one target at a
+// time, and an IMException is thrown for them here.
+public class MultiTargetMeasure {
+
+	// Shared by all images, the threads don't keep the program running
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "target-measure");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Returns one Measure per target, in the same order as the targets. The
+	// Measure of a target that isn't found in the image, or that couldn't be
+	// measured, is null.
+	public static Measure[] measure(String imageName, String[] targetNames,
+			String[] targetDataFilenames, String imageDataTemplateFilename,
+			String outputImage, String imageMagick, String workingDir, int stencil)
+		throws XPathExpressionException, ParserConfigurationException,
+		SAXException, IOException, IMException, FindException {
+		int n = targetNames.length;
+		Features[] targets = new Features[n];
+		for (int i = 0; i < n; i++) {
+			targets[i] = TargetFeatureCache.get(targetNames[i], targetDataFilenames[i]);
+			if (targets[i] == null)
+				throw new FindException("Unable to open target " + targetNames[i]);
+		}
+		PatchSampler sampler = open(imageName);
+		Features image = TargetLocator.extractFeatures(sampler, isLab(imageName));
+		return measure(imageName, sampler, image, targets, targetDataFilenames,
+				imageDataTemplateFilename, outputImage, imageMagick, workingDir, stencil);
+	}
+
+	// Measure the targets in the library that are found in the image. Returns
+	// one Measure per target in the library, null for the targets that aren't
+	// in the image.
+	public static Measure[] measure(String imageName, TargetLibrary library,
+			String imageDataTemplateFilename, String outputImage, String imageMagick,
+			String workingDir, int stencil)
+		throws XPathExpressionException, ParserConfigurationException,
+		SAXException, IOException, IMException, FindException {
+		PatchSampler sampler = open(imageName);
+		Features image = TargetLocator.extractFeatures(sampler, isLab(imageName));
+		int[] candidates = library.identify(image);
+		if (candidates.length == 0)
+			throw new FindException("No known target in the image");
+		Features[] targets = new Features[candidates.length];
+		String[] targetDataFilenames = new String[candidates.length];
+		for (int i = 0; i < candidates.length; i++) {
+			targets[i] = library.getFeatures(candidates[i]);
+			targetDataFilenames[i] = library.getTargetDataFilename(candidates[i]);
+		}
+		Measure[] found = measure(imageName, sampler, image, targets, targetDataFilenames,
+				imageDataTemplateFilename, outputImage, imageMagick, workingDir, stencil);
+		Measure[] measures = new Measure[library.size()];
+		for (int i = 0; i < candidates.length; i++)
+			measures[candidates[i]] = found[i];
+		return measures;
+	}
+
+	private static PatchSampler open(String imageName) throws IOException, IMException {
+		PatchSampler sampler = PatchSampler.open(imageName);
+		if (sampler == null)
+			throw new IMException("The format of " + imageName + " is only supported " +
+					"with one target, not with several targets or a target library");
+		return sampler;
+	}
+
+	private static boolean isLab(String imageName) throws IOException {
+		ImageProbe probe = ImageProbe.probe(imageName);
+		return probe != null && probe.getColorSpace().equals(ImageProbe.LAB);
+	}
+
+	private static Measure[] measure(String imageName, final PatchSampler sampler,
+			Features image, Features[] targets, String[] targetDataFilenames,
+			String imageDataTemplateFilename, String outputImage, String imageMagick,
+			String workingDir, final int stencil)
+		throws XPathExpressionException, ParserConfigurationException,
+		SAXException, IOException, IMException, FindException {
+		int n = targets.length;
+		final Measure[] measures = new Measure[n];
+		double[][][] relativeCenters = new double[n][][];
+		int[][] sizes = new int[n][2];
+		for (int i = 0; i < n; i++) {
+			measures[i] = new Measure(imageName, imageDataTemplateFilename,
+					targetDataFilenames[i], imageMagick);
+			relativeCenters[i] = measures[i].getRelativePatchCenters();
+			sizes[i][0] = measures[i].getTargetSizeInPixels(0);
+			sizes[i][1] = measures[i].getTargetSizeInPixels(1);
+		}
+
+		System.out.println("Locating " + n + " targets");
+		TargetLocation[] locations = TargetLocator.locateAll(targets, image, sampler,
+				measures[0].getColorSpace().equals("LAB"), relativeCenters, sizes,
+				outputImage);
+		// Two targets can't be in the same place, e.g. two photos of the same
+		// target in the library. The first one (the best candidate) is kept.
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < i && locations[i] != null; j++) {
+				if (locations[j] != null && contains(locations[j], center(locations[i]))) {
+					System.out.println("Target " + (i + 1) + " overlaps target " + (j + 1));
+					locations[i] = null;
+				}
+			}
+		}
+
+		final ColorTransform transform =
+			ColorTransform.getLabTransform(workingDir + "/" + "sRGB.icc");
+		Future<?>[] futures = new Future<?>[n];
+		boolean found = false;
+		for (int i = 0; i < n; i++) {
+			if (locations[i] == null) {
+				measures[i] = null;
+				continue;
+			}
+			found = true;
+			final Measure measure = measures[i];
+			measure.setSampler(sampler, imageName);
+			measure.setTargetLocation(locations[i]);
+			measure.computeResolution();
+			futures[i] = executor.submit(new Runnable() {
+				public void run() {
+					measure.measurePatches(stencil, sampler);
+					measure.computeMeasures();
+					measure.measurePatchesLAB(stencil, sampler, transform);
+				}
+			});
+		}
+		if (!found)
+			throw new FindException("Unable to find the targets in the image");
+
+		// A target that couldn't be measured is left out, so that it isn't
+		// written with the values of a Measure that was never filled in
+		Throwable failure = null;
+		boolean measured = false;
+		for (int i = 0; i < n; i++) {
+			if (futures[i] == null)
+				continue;
+			try {
+				futures[i].get();
+				measured = true;
+			}
+			catch (InterruptedException e) {
+				for (Future<?> future : futures) {
+					if (future != null)
+						future.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while measuring " + imageName);
+			}
+			catch (ExecutionException e) {
+				System.out.println("Unable to measure target " + (i + 1) + ": " + e.getCause());
+				e.getCause().printStackTrace();
+				measures[i] = null;
+				if (failure == null)
+					failure = e.getCause();
+			}
+		}
+		if (!measured)
+			throw new IOException("Unable to measure the targets in " + imageName, failure);
+		return measures;
+	}
+
+	private static double[] center(TargetLocation location) {
+		int[][] corners = location.getCorners();
+		double[] center = new double[2];
+		for (int i = 0; i < 4; i++) {
+			center[0] += corners[i][0]/4.0;
+			center[1] += corners[i][1]/4.0;
+		}
+		return center;
+	}
+
+	// The corners are a convex quadrilateral, so the point is inside if it's on
+	// the same side of all four edges
+	private static boolean contains(TargetLocation location, double[] p) {
+		int[][] corners = location.getCorners();
+		int sign = 0;
+		for (int i = 0; i < 4; i++) {
+			int[] a = corners[i];
+			int[] b = corners[(i + 1) % 4];
+			double cross = (double) (b[0] - a[0])*(p[1] - a[1]) - (double) (b[1] - a[1])*(p[0] - a[0]);
+			int s = cross > 0 ? 1 : cross < 0 ? -1 : 0;
+			if (s != 0 && sign != 0 && s != sign)
+				return false;
+			if (s != 0)
+				sign = s;
+		}
+		return true;
+	}
+}
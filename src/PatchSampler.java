@@ -0,0 +1,154 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+// Reads the color values of the patches directly from the decoded image. The
+// image is decoded once and every stencil is then read from the raster, which
+// replaces the ImageMagick crop (and the temporary color.txt) for each patch.
+// The samples are returned on the same scale as ImageMagick's txt-format for
+// 8-bit images, i.e. 0-255 with unsigned a- and b-channels for LAB images.
+// Deeper samples are reduced to 8 bits so the LAB wrap at 128 still applies.
+// Uncompressed TIFFs aren't decoded at all, the samples are read from the
+// memory-mapped file instead. DNG files, TIFFs whose first image is a preview,
+// YCbCr TIFFs and the ICCLab and ITULab encodings are left to ImageMagick.
+public class PatchSampler {
+
+	private Raster raster;
+	private TiffRegionReader tiff;
+	private int[] mask;
+	private int[] shift;
+
+	public PatchSampler(Raster raster) {
+		this.raster = raster;
+		mask = new int[3];
+		shift = new int[3];
+		for (int c = 0; c < 3; c++) {
+			// Signed samples (e.g. 16-bit a and b) are read as unsigned
+			int bits = raster.getSampleModel().getSampleSize(c);
+			mask[c] = bits >= 32 ? -1 : (1 << bits) - 1;
+			shift[c] = bits > 8 ? bits - 8 : 0;
+		}
+	}
+
+	public PatchSampler(TiffRegionReader tiff) {
+		this.tiff = tiff;
+		mask = new int[3];
+		shift = new int[3];
+		for (int c = 0; c < 3; c++) {
+			mask[c] = -1;
+			shift[c] = tiff.getBitsPerSample() - 8;
+		}
+	}
+
+	// Decode the image. Returns null if the image can't be decoded in-process,
+	// the caller should then fall back to ImageMagick.
+	public static PatchSampler open(String filename) throws IOException {
+		TiffRegionReader tiff = TiffRegionReader.open(filename);
+		if (tiff != null && tiff.getSamplesPerPixel() >= 3)
+			return new PatchSampler(tiff);
+		// The TIFF reader below would read the first image, which may be a
+		// preview, read YCbCr samples as RGB and ICCLab and ITULab samples as
+		// CIELab
+		ImageProbe probe = ImageProbe.probe(filename);
+		if (probe != null && probe.getFormat().equals("TIFF") && (probe.isDNG() ||
+				probe.isReducedResolution() || probe.getPhotometricInterpretation() == 6 ||
+				probe.getPhotometricInterpretation() == 9 ||
+				probe.getPhotometricInterpretation() == 10))
+			return null;
+
+		ImageInputStream stream = ImageIO.createImageInputStream(new File(filename));
+		if (stream == null)
+			return null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext())
+				return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				Raster raster;
+				// TIFF is read as raw samples, otherwise the LAB values would be
+				// converted to RGB by the reader
+				if (reader.getFormatName().equalsIgnoreCase("tif") ||
+						reader.getFormatName().equalsIgnoreCase("tiff"))
+					raster = reader.readRaster(0, null);
+				else
+					raster = toComponentImage(reader.read(0)).getRaster();
+
+				// Floating point samples are left to ImageMagick
+				int type = raster.getDataBuffer().getDataType();
+				if (raster.getNumBands() < 3 || type == DataBuffer.TYPE_FLOAT ||
+						type == DataBuffer.TYPE_DOUBLE)
+					return null;
+				return new PatchSampler(raster);
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	// Palette and packed images are redrawn so that band 0-2 are R, G and B
+	private static BufferedImage toComponentImage(BufferedImage image) {
+		if (image.getColorModel() instanceof ComponentColorModel)
+			return image;
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+				BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = rgb.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	// Read a stencil x stencil area with the upper-left corner in (x, y).
+	// values[c][j] is set to channel c of the j:th pixel in row-major order,
+	// the same order as ImageMagick writes the pixels in txt-format. Pixels
+	// outside the image are skipped, just as ImageMagick crops the area.
+	// Returns the number of pixels read.
+	public int readStencil(int x, int y, int stencil, double[][] values) {
+		int j = 0;
+		for (int row = y; row < y + stencil; row++) {
+			if (row < 0 || row >= getHeight())
+				continue;
+			for (int col = x; col < x + stencil; col++) {
+				if (col < 0 || col >= getWidth())
+					continue;
+				for (int c = 0; c < 3; c++) {
+					values[c][j] = getSample(col, row, c);
+				}
+				j++;
+			}
+		}
+		return j;
+	}
+
+	// Return channel c of the pixel in (x, y) on the 8-bit scale
+	public int getSample(int x, int y, int c) {
+		int sample;
+		if (tiff != null)
+			sample = tiff.getSample(x, y, c);
+		else
+			sample = raster.getSample(x, y, c);
+		return (sample & mask[c]) >>> shift[c];
+	}
+
+	public int getWidth() {
+		return tiff != null ? tiff.getWidth() : raster.getWidth();
+	}
+
+	public int getHeight() {
+		return tiff != null ? tiff.getHeight() : raster.getHeight();
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Parser for the pixel enumeration that ImageMagick writes in txt-format, e.g.
+//
+// # ImageMagick pixel enumeration: 5,5,255,lab
+// 0,0: (132,126,129)  #847E81  lab(51.7647%,-0.784314%,0.392157%)
+//
+// The file is read through a buffer that is reused between calls and the
+// first three channel values of each pixel are written directly into the
+// supplied array, without creating any Strings or boxed values. Only the
+// values inside the parentheses are used, the rest of the line is skipped.
+public class PixelTextParser {
+
+	// Values in a line before the rest of it is ignored: x, y and three channels
+	private static final int FIELDS = 5;
+
+	private byte[] buffer;
+
+	public PixelTextParser() {
+		buffer = new byte[64*1024];
+	}
+
+	// Parse the file and set values[c][j] to channel c of the j:th pixel.
+	// Pixels that don't fit in the array are ignored. Returns the number
+	// of pixels read.
+	public int parse(String filename, double[][] values) throws IOException {
+		FileInputStream input = new FileInputStream(filename);
+		int pixel = 0;
+		int field = 0;
+		boolean lineStart = true, skip = false;
+		boolean inNumber = false, negative = false, fraction = false;
+		double number = 0, scale = 1;
+		try {
+			int n;
+			while ((n = input.read(buffer)) > 0) {
+				for (int i = 0; i < n; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						if (inNumber)
+							field = store(values, pixel, field, negative ? -number : number);
+						if (field >= FIELDS)
+							pixel++;
+						field = 0;
+						lineStart = true; skip = false;
+						inNumber = false; negative = false;
+						continue;
+					}
+					if (skip)
+						continue;
+					// First line in the file starts with "# ImageMagick pixel..."
+					if (lineStart && b == '#') {
+						skip = true;
+						continue;
+					}
+					lineStart = false;
+
+					if (b >= '0' && b <= '9') {
+						if (!inNumber) {
+							inNumber = true; fraction = false;
+							number = 0; scale = 1;
+						}
+						if (fraction) {
+							scale /= 10;
+							number += (b - '0')*scale;
+						}
+						else
+							number = 10*number + (b - '0');
+					}
+					else if (b == '.' && inNumber && !fraction) {
+						fraction = true;
+					}
+					else {
+						if (inNumber) {
+							field = store(values, pixel, field, negative ? -number : number);
+							inNumber = false;
+							if (field >= FIELDS)
+								skip = true;
+						}
+						negative = (b == '-');
+					}
+				}
+			}
+			// The last line might not end with a newline
+			if (inNumber)
+				field = store(values, pixel, field, negative ? -number : number);
+			if (field >= FIELDS)
+				pixel++;
+		}
+		finally {
+			input.close();
+		}
+		return Math.min(pixel, values[0].length);
+	}
+
+	// The first two fields are the coordinates of the pixel
+	private static int store(double[][] values, int pixel, int field, double value) {
+		if (field >= 2 && field < FIELDS && pixel < values[0].length)
+			values[field - 2][pixel] = value;
+		return field + 1;
+	}
+}
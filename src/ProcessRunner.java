@@ -0,0 +1,151 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Runs ImageMagick, Find and other programs. The arguments are given one by
+// one, so file names aren't split at spaces. The output and the errors of the
+// program are read while it runs (a program that writes more than the pipe
+// holds would otherwise wait forever), a program that doesn't finish in time
+// is stopped, and only MAX_PROCESSES programs run at the same time. The output
+// is read by virtual threads on Java 21 and later, by a pool of threads
+// otherwise.
+public class ProcessRunner {
+
+	public static final int MAX_PROCESSES =
+		Math.max(2, 2*Runtime.getRuntime().availableProcessors());
+
+	// Only the first part of a long output is kept, the rest is read and
+	// dropped
+	private static final int MAX_OUTPUT = 1 << 20;
+
+	private static final Semaphore processes = new Semaphore(MAX_PROCESSES);
+	private static final ExecutorService readers = readers();
+
+	// The output of a program that has finished
+	public static class Result {
+		private int exitValue;
+		private String output;
+		private String errors;
+
+		private Result(int exitValue, String output, String errors) {
+			this.exitValue = exitValue;
+			this.output = output;
+			this.errors = errors;
+		}
+
+		public int getExitValue() {
+			return exitValue;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+
+		public String getErrors() {
+			return errors;
+		}
+
+		// The first line of the output, null if there's no output
+		public String getFirstLine() {
+			if (output.length() == 0)
+				return null;
+			int end = output.indexOf('\n');
+			String line = end < 0 ? output : output.substring(0, end);
+			return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+		}
+	}
+
+	// Run the program and wait until it's done. Throws an IOException if it
+	// can't be started or is stopped after timeoutMillis.
+	public static Result run(long timeoutMillis, String... command)
+		throws IOException, InterruptedException {
+		processes.acquire();
+		try {
+			Process process = new ProcessBuilder(command).start();
+			try {
+				process.getOutputStream().close();
+				Future<String> output = readers.submit(new Reader(process.getInputStream()));
+				Future<String> errors = readers.submit(new Reader(process.getErrorStream()));
+				if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS))
+					throw new IOException(command[0] + " was stopped after " +
+							timeoutMillis + " ms");
+				return new Result(process.exitValue(), output.get(), errors.get());
+			}
+			catch (ExecutionException e) {
+				throw new IOException("Could not read the output of " + command[0],
+						e.getCause());
+			}
+			finally {
+				// Also when the thread is interrupted, the program isn't left
+				// running
+				if (process.isAlive())
+					process.destroyForcibly();
+			}
+		}
+		finally {
+			processes.release();
+		}
+	}
+
+	// Count a program that isn't started by run(), e.g. a request to a Find
+	// worker, against MAX_PROCESSES. Waits while MAX_PROCESSES programs run,
+	// release() must be called when the program is done.
+	public static void acquire() throws InterruptedException {
+		processes.acquire();
+	}
+
+	public static void release() {
+		processes.release();
+	}
+
+	// Reads a stream of the program until it ends
+	private static class Reader implements Callable<String> {
+		private InputStream in;
+
+		Reader(InputStream in) {
+			this.in = in;
+		}
+
+		public String call() throws IOException {
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			try {
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					if (text.size() < MAX_OUTPUT)
+						text.write(buffer, 0, Math.min(n, MAX_OUTPUT - text.size()));
+				}
+			}
+			finally {
+				in.close();
+			}
+			return text.toString();
+		}
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() is found by reflection so
+	// that Colorite still builds and runs on older Java versions
+	private static ExecutorService readers() {
+		try {
+			return (ExecutorService) Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "process-reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
@@ -26,17 +26,9 @@ import javax.swing.JToolBar;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.border.LineBorder;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 public class Result extends JFrame {
@@ -313,60 +305,15 @@ public class Result extends JFrame {
 	// Read image quality
 	public void readImageQuality(String qualityFilename) throws ParserConfigurationException, 
 		SAXException, IOException, XPathExpressionException {
-
-	    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-	    domFactory.setNamespaceAware(true); // never forget this!
-	    
-	    DocumentBuilder builder = domFactory.newDocumentBuilder();
-	    Document doc = builder.parse(qualityFilename);
-
-	    XPathFactory factory = XPathFactory.newInstance();
-	    XPath xpath = factory.newXPath();
-	    
-	    // Read Gain Modulation
-	    // Get min-values
-	    XPathExpression expr 
-	     = xpath.compile("//gainModulation/*/min/text()");
-	    Object result = expr.evaluate(doc, XPathConstants.NODESET);
-	    NodeList nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        minGainModulation[i] = Double.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Get max-values
-	    expr = xpath.compile("//gainModulation/*/max/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    for (int i = 0; i < nodes.getLength(); i++) {
-	        maxGainModulation[i] = Double.valueOf(nodes.item(i).getNodeValue());
-	    }
-	    
-	    // Delta-E
-	    // Min
-	    expr = xpath.compile("//colorAccuracy/delta-e/mean/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    allowedMeanDeltaE = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
-	    // Delta-E
-	    // Max
-	    expr = xpath.compile("//colorAccuracy/delta-e/max/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    allowedMaxDeltaE = Integer.valueOf(nodes.item(0).getNodeValue());
-	  
-	    // Delta-L
-	    expr = xpath.compile("//delta-L/max/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    allowedMaxDeltaL = Integer.valueOf(nodes.item(0).getNodeValue());
-	   
-	    // Delta-C
-	    expr = xpath.compile("//delta-c/max/text()");
-	    result = expr.evaluate(doc, XPathConstants.NODESET);
-	    nodes = (NodeList) result;
-	    allowedMaxDeltaC = Integer.valueOf(nodes.item(0).getNodeValue());
-	    
+		ImageQuality quality = ImageQuality.get(qualityFilename);
+		for (int i = 0; i < quality.getNumGainModulations() && i < minGainModulation.length; i++) {
+			minGainModulation[i] = quality.getMinGainModulation(i);
+			maxGainModulation[i] = quality.getMaxGainModulation(i);
+		}
+		allowedMeanDeltaE = quality.getAllowedMeanDeltaE();
+		allowedMaxDeltaE = quality.getAllowedMaxDeltaE();
+		allowedMaxDeltaL = quality.getAllowedMaxDeltaL();
+		allowedMaxDeltaC = quality.getAllowedMaxDeltaC();
 	}
 	
 }
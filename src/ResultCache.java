@@ -0,0 +1,161 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Remembers the measurement of an image, so that an image that has already
+// been measured with the same target, quality level and stencil isn't
+// measured again when a batch is run again. The key is the hash of the
+// contents of all of them, so a renamed or copied image is still found and a
+// changed target data file gives new measurements. The location of the target
+// and the measured color values are kept, the measures are computed from them
+// with the current target data. The results are files in the cache directory
+// named after the key.
+public class ResultCache {
+
+	private static final int MAGIC = 0x43525253;
+	// Change when the measurements change, the old results are then unused
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".result";
+
+	private File directory;
+
+	public ResultCache(File directory) {
+		this.directory = directory;
+	}
+
+	public byte[] key(String imageName, String targetName, String targetDataFilename,
+			String qualityFilename, int stencil) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		digest.update(ByteBuffer.allocate(8).putInt(VERSION).putInt(stencil).array());
+		digest.update(ContentHash.hash(new File(imageName)));
+		// The target and the quality level are small and the same for the
+		// whole batch, their hashes are kept in memory
+		digest.update(TargetFeatureCache.hash(new File(targetName)));
+		digest.update(TargetFeatureCache.hash(new File(targetDataFilename)));
+		digest.update(TargetFeatureCache.hash(new File(qualityFilename)));
+		return digest.digest();
+	}
+
+	// Set the location and color values of the image in measure and compute
+	// the measures. Returns false if the image isn't in the cache.
+	public boolean restore(byte[] key, Measure measure) {
+		File file = file(key);
+		if (!file.isFile())
+			return false;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+				if (buffer.remaining() < 16 || buffer.getInt() != MAGIC ||
+						buffer.getInt() != VERSION)
+					return false;
+				int numPatches = buffer.getInt();
+				if (numPatches != measure.getNumPatches() ||
+						buffer.remaining() != 4 + 4*8 + numPatches*(4*2 + 8*7))
+					return false;
+				boolean upsideDown = buffer.getInt() == 1;
+				int[][] corners = new int[4][2];
+				for (int i = 0; i < 4; i++) {
+					corners[i][0] = buffer.getInt();
+					corners[i][1] = buffer.getInt();
+				}
+				int[][] patches = new int[numPatches][2];
+				for (int i = 0; i < numPatches; i++) {
+					patches[i][0] = buffer.getInt();
+					patches[i][1] = buffer.getInt();
+				}
+				measure.setTargetLocation(new TargetLocation(corners, patches, upsideDown));
+				double[] values = new double[3];
+				double[] valuesSRGB = new double[3];
+				for (int i = 0; i < numPatches; i++) {
+					for (int j = 0; j < 3; j++)
+						values[j] = buffer.getDouble();
+					for (int j = 0; j < 3; j++)
+						valuesSRGB[j] = buffer.getDouble();
+					measure.setMeasuredColorValues(i, values, valuesSRGB, buffer.getDouble());
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			// A broken result is measured again
+			return false;
+		}
+		measure.computeResolution();
+		measure.computeMeasures();
+		return true;
+	}
+
+	// Written to a temporary file that replaces the old one when it's complete
+	public void store(byte[] key, Measure measure) throws IOException {
+		int numPatches = measure.getNumPatches();
+		ByteBuffer buffer = ByteBuffer.allocate(4*3 + 4 + 4*8 + numPatches*(4*2 + 8*7));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(numPatches);
+		buffer.putInt(measure.isTargetUpsideDown() ? 1 : 0);
+		for (int i = 0; i < 4; i++) {
+			buffer.putInt(measure.getTargetCorner(i, 0));
+			buffer.putInt(measure.getTargetCorner(i, 1));
+		}
+		for (int i = 0; i < numPatches; i++) {
+			buffer.putInt(measure.getPatchLocation(i, 0));
+			buffer.putInt(measure.getPatchLocation(i, 1));
+		}
+		for (int i = 0; i < numPatches; i++) {
+			for (int j = 0; j < 3; j++)
+				buffer.putDouble(measure.getMeasuredColorValue(i, j));
+			for (int j = 0; j < 3; j++)
+				buffer.putDouble(measure.getMeasuredColorValueSRGB(i, j));
+			buffer.putDouble(measure.getStdDev(i));
+		}
+		buffer.flip();
+
+		File file = file(key);
+		File parent = file.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Could not create " + parent);
+		File temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("Could not rename " + temp);
+			}
+		}
+	}
+
+	// The results are spread over 256 directories by the first byte of the key
+	private File file(byte[] key) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : key)
+			hex.append(String.format("%02x", b));
+		return new File(new File(directory, hex.substring(0, 2)), hex + SUFFIX);
+	}
+}
@@ -14,6 +14,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.swing.JLabel;
 
@@ -68,11 +71,35 @@ public class Setup extends JFrame {
 	private JTextField targetDataField;
 	private JTextField qualityField;
 	private JCheckBox checkBox;
-	private Measure currentImage;
 	private String imageDataTemplateFilename;
+	private String imageDataFilename;
+	private String find;
+	private String imageMagick;
+	// Number of images measured at the same time in batch mode
+	private int batchWorkers = Runtime.getRuntime().availableProcessors();
+	// Threads of the decode, locate, measure and write stages in batch mode
+	private int[] batchStages = {2, batchWorkers, batchWorkers, 1};
+	// The part of the images measured by this machine in batch mode
+	private DirectoryScanner scanner = new DirectoryScanner();
+	// The measurements of the images in earlier batches
+	private ResultCache resultCache = 
+		new ResultCache(new File(System.getProperty("user.dir"), "resultCache"));
 
 
 	public Setup() {
+		this(new String[0]);
+	}
+	
+	// The options are given on the command line, --shard k/N measures part k 
+	// of N of the images in batch mode
+	public Setup(String[] args) {
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--shard") && i + 1 < args.length)
+				scanner = DirectoryScanner.forShard(args[++i]);
+			else if (args[i].startsWith("--shard="))
+				scanner = DirectoryScanner.forShard(args[i].substring(8));
+		}
 
 		toolkit = getToolkit();
 		final Dimension size = toolkit.getScreenSize();
@@ -112,6 +139,25 @@ public class Setup extends JFrame {
 			if ((strLine = br.readLine()) != null)   {			
 				useBatchMode = strLine;
 			}
+			// Optional, the number of images measured at the same time in 
+			// batch mode. The default is one per processor. Four numbers 
+			// separated by commas are the threads of the decode, locate, 
+			// measure and write stages.
+			if ((strLine = br.readLine()) != null && strLine.trim().length() > 0) {
+				String[] values = strLine.trim().split(",");
+				if (values.length == batchStages.length) {
+					batchWorkers = 1;
+					for (int i = 0; i < values.length; i++) {
+						batchStages[i] = Integer.parseInt(values[i].trim());
+						batchWorkers = Math.max(batchWorkers, batchStages[i]);
+					}
+				}
+				else {
+					batchWorkers = Integer.parseInt(strLine.trim());
+					batchStages[1] = batchWorkers;
+					batchStages[2] = batchWorkers;
+				}
+			}
 			
 			in.close();
 		} catch (IOException e1) {
@@ -119,12 +165,18 @@ public class Setup extends JFrame {
 			//size = toolkit.getScreenSize();
 			String text = "config.txt error";
 			Utils.errorWindow(size.width, size.height-400, 200, 100, text);
+		} catch (NumberFormatException e1) {
+			toolkit = getToolkit();
+			String text = "config.txt error";
+			Utils.errorWindow(size.width, size.height-400, 200, 100, text);
 		}
 		
 		// Check for GUI (never GUI in batch mode)
 		if (useGUI.equals("1") || useGUI.equals("useGUI"))
 			GUI();
 		// No GUI
+		else if (useBatchMode.equals("useWatch"))
+			watchMode();
 		else if (!(useBatchMode.equals("1") || useBatchMode.equals("useBatch")))
 			run();
 		else
@@ -151,40 +203,285 @@ public class Setup extends JFrame {
 		return space;
 	}
 	
-	// Run in batch mode
+	// Run in batch mode. The directory and its subdirectories are measured 
+	// concurrently while they are scanned, see DirectoryScanner and 
+	// BatchPipeline. The images are recorded in a journal in the directory 
+	// (colorite.journal), a batch that was stopped continues with the images
+	// that weren't done. The images that fail are tried again and are listed 
+	// in colorite.dead if they still fail, see JobJournal.
 	public void batchMode(){
-		File files[]; 
-		int fileTypeStart = 0;
-		
-		// List all files in directory
+		String workingDir = System.getProperty("user.dir");
 		File directory = new File(referenceImage);
-	    files = directory.listFiles();
-	    boolean extension, space;
-	    // Check for the last dot in the filename
-	    for (int i = 0, n = files.length; i < n; i++) {
-	    	referenceImage = files[i].toString();
-	    	extension = false; space = false;
-	    	for (int j = 0; j < referenceImage.length(); j++) {
-				if (referenceImage.charAt(j) == ('.')) {
-					fileTypeStart = j;
-					extension = true;
+		if (!directory.isDirectory()) {
+			System.out.println("Unable to list " + referenceImage);
+			return;
+		}
+		final int stencil = 5;
+		JobJournal journal = null;
+		try {
+			readProgramLocations();
+			prepareTargets();
+			String name = "colorite" + scanner.getShardSuffix();
+			journal = new JobJournal(new File(directory, name + ".journal"), 
+					new File(directory, name + ".dead"), 
+					JobJournal.key(targetImage, targetData, qualityData, "" + stencil));
+			final JobJournal jobs = journal;
+			final List<File> retries = Collections.synchronizedList(new ArrayList<File>());
+			final BatchPipeline pipeline = batchPipeline(stencil, workingDir);
+			pipeline.setListener(new BatchPipeline.Listener() {
+				public void started(BatchPipeline.Item item) {
+					try {
+						jobs.started(item.getImage());
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+
+				public void finished(BatchPipeline.Item item) {
+					try {
+						if (item.getError() == null)
+							jobs.succeeded(item.getImage());
+						else if (jobs.failed(item.getImage(), item.getError()))
+							retries.add(item.getImage());
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			pipeline.start();
+			try {
+				scanner.scan(directory, new DirectoryScanner.Visitor() {
+					public void visit(File image) throws InterruptedException, IOException {
+						if (jobs.isPending(image)) {
+							jobs.enqueued(image);
+							pipeline.submit(image);
+						}
+					}
+				});
+			}
+			finally {
+				pipeline.finish();
+			}
+			// The failed images are tried again until they are done or have 
+			// used up their attempts
+			while (!retries.isEmpty() && !Thread.currentThread().isInterrupted()) {
+				List<File> images = new ArrayList<File>(retries);
+				retries.clear();
+				System.out.println("Trying " + images.size() + " failed images again");
+				pipeline.start();
+				try {
+					for (File image : images) {
+						jobs.enqueued(image);
+						pipeline.submit(image);
+					}
+				}
+				finally {
+					pipeline.finish();
 				}
-				if (referenceImage.charAt(j) == (' '))
-					space = true;
 			}
-	  
-	    	// Assure that we only measure on support image formats and that we
-	    	// have an extension, i.e. dot in the filename
-	    	if (extension && !space) {
-	    		String fileType = referenceImage.substring(fileTypeStart+1);
-	    		if (fileType.equals("tif") || fileType.equals("dng") || 
-	    				fileType.equals("jpg") || fileType.equals("jpeg") ||
-	    				fileType.equals("png"))	{
-	    			System.out.println("Now measuring: " + referenceImage);
-	    			run();    
-	    		}
-	    	}
-	    }
+			if (!Thread.currentThread().isInterrupted())
+				journal.complete();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			if (journal != null)
+				journal.close();
+		}
+	}
+	
+	// Run as a daemon that measures the images dropped in the inboxes (the 
+	// first line of config.txt, several directories are separated with ';'). 
+	// The targets are kept in memory and Find keeps running between images. 
+	// Runs until Colorite is stopped, the images that have been started are 
+	// finished first.
+	public void watchMode(){
+		String workingDir = System.getProperty("user.dir");
+		String[] directories = referenceImage.split(";");
+		File[] inboxes = new File[directories.length];
+		for (int i = 0; i < directories.length; i++) {
+			inboxes[i] = new File(directories[i]);
+			if (!inboxes[i].isDirectory()) {
+				System.out.println("Unable to watch " + inboxes[i]);
+				return;
+			}
+		}
+		try {
+			readProgramLocations();
+			prepareTargets();
+			final InboxWatcher watcher = new InboxWatcher(inboxes, 
+					batchPipeline(5, workingDir));
+			final Thread main = Thread.currentThread();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					System.out.println("Stopping, waiting for the images in progress");
+					watcher.stop();
+					try {
+						main.join();
+					}
+					catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			watcher.run();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// Only supported image formats with an extension and without spaces are 
+	// measured. The previews written in batch mode (out_<image>.png) are 
+	// skipped.
+	public static boolean isBatchImage(File file) {
+		String filename = file.getName().toLowerCase();
+		if (filename.indexOf(' ') >= 0 || filename.startsWith("out_") || 
+				file.getPath().indexOf(' ') >= 0)
+			return false;
+		return isImageType(filename);
+	}
+	
+	// True if the extension of the file is that of an image that can be measured
+	public static boolean isImageType(String filename) {
+		int dot = filename.lastIndexOf('.');
+		if (dot < 0)
+			return false;
+		String fileType = filename.substring(dot+1).toLowerCase();
+		return fileType.equals("tif") || fileType.equals("dng") || 
+			fileType.equals("jpg") || fileType.equals("jpeg") ||
+			fileType.equals("png");
+	}
+	
+	// The stages of measuring one target in an image. Decoding is limited by 
+	// the disk, locating and measuring by the processors (or by ImageMagick 
+	// and Find if the image can't be decoded in-process). Several targets are
+	// already measured concurrently within each image, they are measured in 
+	// one stage.
+	private BatchPipeline batchPipeline(final int stencil, final String workingDir) {
+		BatchPipeline pipeline = new BatchPipeline();
+		if (new File(targetImage).isDirectory() || targetImage.indexOf(';') >= 0) {
+			pipeline.addStage("measure", batchWorkers, new BatchPipeline.Stage() {
+				public void run(BatchPipeline.Item item) throws Exception {
+					String image = item.getImage().toString();
+					String[] filenames = batchFilenames(image);
+					System.out.println("XML-output: " + filenames[0]);
+					measure(image, filenames[0], filenames[1], stencil, workingDir, 
+							item.getScratchDir());
+				}
+			});
+			return pipeline;
+		}
+		// Check the color space and decode the image. An image that was 
+		// measured in an earlier batch isn't decoded, only its result is 
+		// written again.
+		pipeline.addStage("decode", batchStages[0], new BatchPipeline.Stage() {
+			public void run(BatchPipeline.Item item) throws Exception {
+				String image = item.getImage().toString();
+				Measure measure = new Measure(image, imageDataTemplateFilename, 
+						targetData, imageMagick);
+				item.setMeasure(measure);
+				byte[] key = resultCache.key(image, targetImage, targetData, qualityData, 
+						stencil);
+				item.setResultKey(key);
+				if (resultCache.restore(key, measure)) {
+					System.out.println("Measurement of " + image + " found in the cache");
+					item.setMeasured(true);
+					return;
+				}
+				// ImageMagick is used later if the image can't be decoded
+				PatchSampler sampler = PatchSampler.open(image);
+				if (sampler != null)
+					measure.setSampler(sampler, image);
+			}
+		});
+		pipeline.addStage("locate", batchStages[1], new BatchPipeline.Stage() {
+			public void run(BatchPipeline.Item item) throws Exception {
+				if (item.isMeasured())
+					return;
+				String image = item.getImage().toString();
+				String[] filenames = batchFilenames(image);
+				item.getMeasure().locateTarget(image, targetImage, filenames[0], 
+						targetData, filenames[1], find);
+				item.getMeasure().computeResolution();
+			}
+		});
+		pipeline.addStage("measure", batchStages[2], new BatchPipeline.Stage() {
+			public void run(BatchPipeline.Item item) throws Exception {
+				if (item.isMeasured())
+					return;
+				String image = item.getImage().toString();
+				Measure measure = item.getMeasure();
+				measure.measurePatches(stencil, image, imageMagick, workingDir, 
+						item.getScratchDir());
+				measure.computeMeasures();
+				measure.measurePatchesLAB(stencil, image, imageMagick, workingDir, 
+						item.getScratchDir());
+			}
+		});
+		pipeline.addStage("write", batchStages[3], new BatchPipeline.Stage() {
+			public void run(BatchPipeline.Item item) throws Exception {
+				String[] filenames = batchFilenames(item.getImage().toString());
+				System.out.println("XML-output: " + filenames[0]);
+				item.getMeasure().setImageData(stencil, filenames[0], qualityData);
+				if (!item.isMeasured()) {
+					try {
+						resultCache.store(item.getResultKey(), item.getMeasure());
+					}
+					catch (IOException e) {
+						// The image is measured again next time
+						System.out.println("Could not save the result of " + 
+								item.getImage() + ": " + e.getMessage());
+					}
+				}
+			}
+		});
+		return pipeline;
+	}
+	
+	// Read the target data and the keypoints of the targets before the images
+	// are measured, so that the workers don't all prepare them at once
+	private void prepareTargets() throws XPathExpressionException, 
+		ParserConfigurationException, SAXException, IOException {
+		if (new File(targetImage).isDirectory()) {
+			TargetLibrary.get(targetImage);
+			return;
+		}
+		String[] targetImages = targetImage.split(";");
+		String[] targetDatas = targetData.split(";");
+		for (int i = 0; i < targetImages.length && i < targetDatas.length; i++) {
+			TargetDefinition.get(targetDatas[i]);
+			TargetFeatureCache.get(targetImages[i], targetDatas[i]);
+		}
+	}
+	
+	// The names of the imageData file and the output image of an image in a 
+	// batch, iQ_<image>.xml and out_<image>.png next to the image
+	public static String[] batchFilenames(String referenceImage) {
+		// Add iQ to the right part of the filename
+		int nameStart = 0;
+		for (int i = 0; i < referenceImage.length(); i++) {
+			if (referenceImage.charAt(i) == ('/') || 
+					referenceImage.charAt(i) == ('\\')) {
+				nameStart = i;
+			}
+		}
+		
+		String start = referenceImage.substring(0, nameStart+1);
+		String end = referenceImage.substring(nameStart + 1);
+		String imageDataFilename = start + "iQ_" + end;
+		String outputImage = start + "out_" + end;
+		for (int i = 0; i < imageDataFilename.length(); i++) {
+			if (imageDataFilename.charAt(i) == ('.')) {
+				nameStart = i;
+			}
+		}
+		imageDataFilename = imageDataFilename.substring(0, nameStart) + ".xml";	
+		outputImage = outputImage.substring(0, nameStart+1) + ".png";	
+		return new String[] {imageDataFilename, outputImage};
 	}
 	
 	// Run with GUI enabled
@@ -497,88 +794,11 @@ public class Setup extends JFrame {
 	public void run(){
 		int stencil = 5;
 
-		String imageDataFilename = null;
-		String find = null;
-		String imageMagick = null;
 		String workingDir = System.getProperty("user.dir");
 		try {
-			// Read programLocations from file
-			FileInputStream fstream = new FileInputStream(System.getProperty("user.dir") + "/programLocations.txt");
-			//FileInputStream fstream = new FileInputStream("C:\\Programmering\\Matchning\\programLocations.txt");
-			DataInputStream in = new DataInputStream(fstream);
-			BufferedReader br = new BufferedReader(new InputStreamReader(in));
-			String strLine;
-
-			if ((strLine = br.readLine()) != null)   {			
-				imageDataTemplateFilename = strLine;
-			}
-			if ((strLine = br.readLine()) != null)   {			
-				imageDataFilename = strLine;
-			}
-			if ((strLine = br.readLine()) != null)   {			
-				find = strLine;
-			}
-			if ((strLine = br.readLine()) != null)   {			
-				imageMagick = strLine;
-			}
-
-			in.close();
-			
-			// Modify the imageData and output filename for batchRun
-			if (!(useGUI.equals("1") || useGUI.equals("useGUI")) && 
-					(useBatchMode.equals("1") || useBatchMode.equals("useBatch"))) {
-				// Add iQ to the right part of the filename
-				int nameStart = 0;
-				for (int i = 0; i < referenceImage.length(); i++) {
-					if (referenceImage.charAt(i) == ('/') || 
-							referenceImage.charAt(i) == ('\\')) {
-						nameStart = i;
-					}
-				}
-				
-				String start = referenceImage.substring(0, nameStart+1);
-				String end = referenceImage.substring(nameStart + 1);
-				imageDataFilename = start + "iQ_" + end;
-				outputImage = start + "out_" + end;
-				for (int i = 0; i < imageDataFilename.length(); i++) {
-					if (imageDataFilename.charAt(i) == ('.')) {
-						nameStart = i;
-					}
-				}
-				imageDataFilename = imageDataFilename.substring(0, nameStart) + ".xml";	
-				outputImage = outputImage.substring(0, nameStart+1) + ".png";	
-			
-				System.out.println("XML-output: " + imageDataFilename);
-			}
-			
-			currentImage = new Measure(referenceImage, targetImage, 
-					imageDataTemplateFilename, imageDataFilename, 
-					targetData, outputImage, find, imageMagick);
-			currentImage.measurePatches(stencil, referenceImage,
-					imageMagick, workingDir);
-			if (currentImage.getColorSpace().equals("LAB")) {
-				currentImage.computeDeltaE();
-				currentImage.computeDeltaL();
-				currentImage.computeDeltaC();
-				currentImage.computeGainModulation();
-			}
-			else
-				currentImage.computeDeviationRGB();
-			currentImage.measurePatchesLAB(stencil, referenceImage, imageMagick, workingDir);
-			currentImage.setImageData(stencil, imageDataFilename, qualityData);
-			
-			// Only show result window if GUI is enabled
-			if (useGUI.equals("1") || useGUI.equals("useGUI")) {
-				Result result = new Result(currentImage, qualityData, targetData,
-						referenceImage);
-
-				result.setVisible(true);
-
-				if (showImage == 1) {
-					ShowImage image = new ShowImage(outputImage);
-					image.setVisible(true);
-				}
-			}
+			readProgramLocations();
+			measure(referenceImage, imageDataFilename, outputImage, stencil, workingDir, 
+					workingDir);
 		} catch (XPathExpressionException e) {
 			toolkit = getToolkit();
 			Dimension size = toolkit.getScreenSize();
@@ -612,9 +832,157 @@ public class Setup extends JFrame {
 		}
 	}
 	
+	// Read programLocations from file
+	private void readProgramLocations() throws IOException {
+		FileInputStream fstream = new FileInputStream(System.getProperty("user.dir") + "/programLocations.txt");
+		//FileInputStream fstream = new FileInputStream("C:\\Programmering\\Matchning\\programLocations.txt");
+		DataInputStream in = new DataInputStream(fstream);
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		String strLine;
+
+		if ((strLine = br.readLine()) != null)   {			
+			imageDataTemplateFilename = strLine;
+		}
+		if ((strLine = br.readLine()) != null)   {			
+			imageDataFilename = strLine;
+		}
+		if ((strLine = br.readLine()) != null)   {			
+			find = strLine;
+		}
+		if ((strLine = br.readLine()) != null)   {			
+			imageMagick = strLine;
+		}
+
+		in.close();
+	}
+	
+	// Measure one image. This is called concurrently in batch mode, so only 
+	// the parameters change between images. The temporary files of 
+	// ImageMagick are written to scratchDir.
+	public void measure(String referenceImage, String imageDataFilename, 
+			String outputImage, int stencil, String workingDir, String scratchDir) 
+		throws XPathExpressionException, ParserConfigurationException, 
+		SAXException, IOException, IMException, FindException {
+		// A directory is a library of targets, the targets in the image 
+		// are identified automatically
+		if (new File(targetImage).isDirectory()) {
+			runTargetLibrary(referenceImage, outputImage, stencil, imageDataFilename, 
+					workingDir);
+			return;
+		}
+		// Several targets in the same image are separated with ';'
+		if (targetImage.indexOf(';') >= 0) {
+			runMultipleTargets(referenceImage, outputImage, stencil, imageDataFilename, 
+					workingDir);
+			return;
+		}
+		Measure measure = new Measure(referenceImage, targetImage, 
+				imageDataTemplateFilename, imageDataFilename, 
+				targetData, outputImage, find, imageMagick);
+		measure.measurePatches(stencil, referenceImage,
+				imageMagick, workingDir, scratchDir);
+		measure.computeMeasures();
+		measure.measurePatchesLAB(stencil, referenceImage, imageMagick, workingDir, 
+				scratchDir);
+		measure.setImageData(stencil, imageDataFilename, qualityData);
+		
+		// Only show result window if GUI is enabled
+		if (useGUI.equals("1") || useGUI.equals("useGUI")) {
+			Result result = new Result(measure, qualityData, targetData,
+					referenceImage);
+
+			result.setVisible(true);
+
+			if (showImage == 1) {
+				ShowImage image = new ShowImage(outputImage);
+				image.setVisible(true);
+			}
+		}
+	}
+	
+	// Measure all targets in the image in one pass. The result of each target 
+	// is written to its own file, named after the target.
+	public void runMultipleTargets(String referenceImage, String outputImage, 
+			int stencil, String imageDataFilename, String workingDir) throws XPathExpressionException, 
+			ParserConfigurationException, SAXException, IOException, IMException, 
+			FindException {
+		String[] targetImages = targetImage.split(";");
+		String[] targetDatas = targetData.split(";");
+		if (targetImages.length != targetDatas.length) {
+			toolkit = getToolkit();
+			Dimension size = toolkit.getScreenSize();
+			String text = "Target images and target data don't match";
+			Utils.errorWindow(size.width, size.height, 200, 100, text);
+			return;
+		}
+		Measure[] measures = MultiTargetMeasure.measure(referenceImage, targetImages, 
+				targetDatas, imageDataTemplateFilename, outputImage, imageMagick, 
+				workingDir, stencil);
+		showMultipleTargets(measures, targetImages, targetDatas, referenceImage, 
+				outputImage, stencil, imageDataFilename);
+	}
+	
+	// Identify and measure the targets in the image with the target library
+	public void runTargetLibrary(String referenceImage, String outputImage, 
+			int stencil, String imageDataFilename, String workingDir) throws XPathExpressionException, 
+			ParserConfigurationException, SAXException, IOException, IMException, 
+			FindException {
+		TargetLibrary library = TargetLibrary.get(targetImage);
+		Measure[] measures = MultiTargetMeasure.measure(referenceImage, library, 
+				imageDataTemplateFilename, outputImage, imageMagick, workingDir, stencil);
+		String[] targetImages = new String[library.size()];
+		String[] targetDatas = new String[library.size()];
+		for (int i = 0; i < library.size(); i++) {
+			targetImages[i] = library.getTargetName(i);
+			targetDatas[i] = library.getTargetDataFilename(i);
+		}
+		showMultipleTargets(measures, targetImages, targetDatas, referenceImage, 
+				outputImage, stencil, imageDataFilename);
+	}
+	
+	// Write the result of each target to its own file, named after the target
+	public void showMultipleTargets(Measure[] measures, String[] targetImages, 
+			String[] targetDatas, String referenceImage, String outputImage, 
+			int stencil, String imageDataFilename) 
+		throws XPathExpressionException, ParserConfigurationException, 
+		SAXException, IOException {
+		for (int i = 0; i < measures.length; i++) {
+			if (measures[i] == null)
+				continue;
+			// Add the name of the target to the filename
+			String name = new File(targetImages[i]).getName();
+			if (name.lastIndexOf('.') > 0)
+				name = name.substring(0, name.lastIndexOf('.'));
+			String filename = imageDataFilename;
+			int dot = filename.lastIndexOf('.');
+			if (dot > Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')))
+				filename = filename.substring(0, dot) + "_" + name + filename.substring(dot);
+			else
+				filename = filename + "_" + name;
+			System.out.println("XML-output: " + filename);
+			measures[i].setImageData(stencil, filename, qualityData);
+			// Only show result window if GUI is enabled
+			if (useGUI.equals("1") || useGUI.equals("useGUI")) {
+				Result result = new Result(measures[i], qualityData, targetDatas[i],
+						referenceImage);
+				result.setVisible(true);
+			}
+		}
+		if ((useGUI.equals("1") || useGUI.equals("useGUI")) && showImage == 1) {
+			ShowImage image = new ShowImage(outputImage);
+			image.setVisible(true);
+		}
+	}
+	
 	public static void main(String[] args) {
 
-		Setup setup = new Setup();
+		for (String arg : args) {
+			if (arg.equals("--server") || arg.startsWith("--server=")) {
+				MeasurementServer.run(args);
+				return;
+			}
+		}
+		Setup setup = new Setup(args);
 		if (setup.useGUI.equals("1") || setup.useGUI.equals("useGUI")) {
 			setup.setVisible(true);
 		}
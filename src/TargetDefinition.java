@@ -0,0 +1,326 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The contents of a target data file (e.g. CC_mini.xml). A target is parsed
+// once and then kept in memory for the rest of the batch. It's also saved in a
+// binary file next to the XML (<targetData>.definition) which is read by
+// later runs. The binary file is used as long as the XML has the same
+// modification time and length, or the same hash if it has been touched or
+// copied.
+public class TargetDefinition {
+
+	private static final int MAGIC = 0x43525444;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".definition";
+
+	private static final String[] GAIN_MODULATION = {"L95", "L90", "L85", "L80", "L25",
+		"L20", "L10", "L5"};
+	// The elements that are read, and the index of each in the reader
+	private static final int NUMBER_OF_PATCHES = 0;
+	private static final int LAB = 1;
+	private static final int RGB = 4;
+	private static final int RELATIVE_CENTER = 7;
+	private static final int START_WITH_GRAYSCALE = 9;
+	private static final int PATCHES_BEFORE_CHANGE = 10;
+	private static final int SIZE_REAL_WORLD = 11;
+	private static final int SIZE_IN_PIXELS = 13;
+	private static final int NAME = 15;
+	private static final int GAIN_MODULATION_PATCHES = 16;
+	private static final XmlReader reader = new XmlReader("numberOfPatches",
+			"LAB/L", "LAB/A", "LAB/B", "adobeRGB/R", "adobeRGB/G", "adobeRGB/B",
+			"patches/patch/relativeCenter/X", "patches/patch/relativeCenter/Y",
+			"generalData/startWithGrayscale", "generalData/patchesBeforeChange",
+			"sizeRealWorld/X", "sizeRealWorld/Y", "size/sizeInPixels/X",
+			"size/sizeInPixels/Y", "generalData/name", "gainModulation/L95",
+			"gainModulation/L90", "gainModulation/L85", "gainModulation/L80",
+			"gainModulation/L25", "gainModulation/L20", "gainModulation/L10",
+			"gainModulation/L5");
+
+	private static ConcurrentHashMap<String, TargetDefinition> cache =
+		new ConcurrentHashMap<String, TargetDefinition>();
+
+	private String name;
+	private int numPatches;
+	private int startWithGrayscale;
+	private int patchesBeforeChange;
+	private double[] sizeRealWorld;
+	private int[] sizeInPixels;
+	// Patch numbers of L*95, L*90, L*85, L*80, L*25, L*20, L*10 and L*5
+	private int[] gainModulationPatches;
+	// Three values per patch
+	private double[] referenceLAB;
+	private int[] referenceRGB;
+	// Two values per patch
+	private double[] relativeCenters;
+	// The XML file the definition was read from
+	private long lastModified;
+	private long length;
+	private byte[] hash;
+
+	private TargetDefinition() {
+	}
+
+	public static TargetDefinition get(String targetDataFilename) throws IOException {
+		File file = new File(targetDataFilename).getAbsoluteFile();
+		TargetDefinition definition = cache.get(file.getPath());
+		if (definition != null && definition.lastModified == file.lastModified() &&
+				definition.length == file.length())
+			return definition;
+
+		File sidecar = new File(file.getPath() + SUFFIX);
+		definition = read(sidecar, file);
+		if (definition == null) {
+			definition = parse(file);
+			try {
+				write(sidecar, definition);
+			}
+			catch (IOException e) {
+				// The target directory may be read-only
+				System.out.println("Could not save " + sidecar.getName());
+			}
+		}
+		cache.put(file.getPath(), definition);
+		return definition;
+	}
+
+	private static TargetDefinition parse(File file) throws IOException {
+		TargetDefinition t = parse(reader.read(file.getPath()), file.getPath());
+		t.lastModified = file.lastModified();
+		t.length = file.length();
+		t.hash = TargetFeatureCache.hash(file);
+		System.out.println("Target data read from " + file.getName());
+		return t;
+	}
+
+	// Parse target data that isn't a file, e.g. for MeasurementEngine. The
+	// definition isn't cached and no binary file is written.
+	public static TargetDefinition parse(InputStream in, String name) throws IOException {
+		return parse(reader.read(in, name), name);
+	}
+
+	private static TargetDefinition parse(String[][] values, String filename)
+		throws IOException {
+		TargetDefinition t = new TargetDefinition();
+		t.numPatches = Integer.valueOf(XmlReader.first(values[NUMBER_OF_PATCHES],
+				"numberOfPatches", filename));
+		int n = t.numPatches;
+		t.referenceLAB = new double[n*3];
+		t.referenceRGB = new int[n*3];
+		t.relativeCenters = new double[n*2];
+		for (int c = 0; c < 3; c++) {
+			String[] lab = values[LAB + c];
+			for (int i = 0; i < lab.length && i < n; i++) {
+				if (lab[i].length() > 0)
+					t.referenceLAB[i*3 + c] = Double.valueOf(lab[i]);
+			}
+			String[] rgb = values[RGB + c];
+			for (int i = 0; i < rgb.length && i < n; i++) {
+				if (rgb[i].length() > 0)
+					t.referenceRGB[i*3 + c] = Integer.valueOf(rgb[i]);
+			}
+		}
+		for (int c = 0; c < 2; c++) {
+			String[] centers = values[RELATIVE_CENTER + c];
+			for (int i = 0; i < centers.length && i < n; i++) {
+				if (centers[i].length() > 0)
+					t.relativeCenters[i*2 + c] = Double.valueOf(centers[i]);
+			}
+		}
+		t.startWithGrayscale = Integer.valueOf(XmlReader.first(
+				values[START_WITH_GRAYSCALE], "startWithGrayscale", filename));
+		t.patchesBeforeChange = Integer.valueOf(XmlReader.first(
+				values[PATCHES_BEFORE_CHANGE], "patchesBeforeChange", filename));
+		t.sizeRealWorld = new double[2];
+		t.sizeInPixels = new int[2];
+		for (int c = 0; c < 2; c++) {
+			t.sizeRealWorld[c] = Double.valueOf(XmlReader.first(
+					values[SIZE_REAL_WORLD + c], "sizeRealWorld", filename));
+			t.sizeInPixels[c] = (int) Double.parseDouble(XmlReader.first(
+					values[SIZE_IN_PIXELS + c], "sizeInPixels", filename));
+		}
+		t.gainModulationPatches = new int[GAIN_MODULATION.length];
+		for (int i = 0; i < GAIN_MODULATION.length; i++)
+			t.gainModulationPatches[i] = Integer.valueOf(XmlReader.first(
+					values[GAIN_MODULATION_PATCHES + i], GAIN_MODULATION[i], filename));
+		t.name = XmlReader.first(values[NAME], "name", filename);
+		return t;
+	}
+
+	// Returns null if there's no binary file or it belongs to another version
+	// of the XML
+	private static TargetDefinition read(File sidecar, File file) {
+		if (!sidecar.isFile())
+			return null;
+		try {
+			RandomAccessFile in = new RandomAccessFile(sidecar, "r");
+			try {
+				// Read rather than mapped, a mapped file can't be replaced on
+				// Windows while the mapping is alive
+				FileChannel channel = in.getChannel();
+				if (channel.size() > Integer.MAX_VALUE)
+					return null;
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						return null;
+				}
+				buffer.flip();
+				if (buffer.remaining() < 56 || buffer.getInt() != MAGIC ||
+						buffer.getInt() != VERSION)
+					return null;
+				TargetDefinition t = new TargetDefinition();
+				t.lastModified = buffer.getLong();
+				t.length = buffer.getLong();
+				t.hash = new byte[32];
+				buffer.get(t.hash);
+				if (t.length != file.length())
+					return null;
+				if (t.lastModified != file.lastModified()) {
+					// Same contents with a new date, e.g. a copied file
+					if (!Arrays.equals(t.hash, TargetFeatureCache.hash(file)))
+						return null;
+					t.lastModified = file.lastModified();
+				}
+
+				byte[] name = new byte[buffer.getInt()];
+				buffer.get(name);
+				t.name = new String(name, "UTF-8");
+				int n = buffer.getInt();
+				t.numPatches = n;
+				t.startWithGrayscale = buffer.getInt();
+				t.patchesBeforeChange = buffer.getInt();
+				t.sizeRealWorld = new double[] {buffer.getDouble(), buffer.getDouble()};
+				t.sizeInPixels = new int[] {buffer.getInt(), buffer.getInt()};
+				t.gainModulationPatches = new int[8];
+				buffer.asIntBuffer().get(t.gainModulationPatches);
+				buffer.position(buffer.position() + 4*8);
+				t.referenceLAB = new double[n*3];
+				buffer.asDoubleBuffer().get(t.referenceLAB);
+				buffer.position(buffer.position() + 8*n*3);
+				t.referenceRGB = new int[n*3];
+				buffer.asIntBuffer().get(t.referenceRGB);
+				buffer.position(buffer.position() + 4*n*3);
+				t.relativeCenters = new double[n*2];
+				buffer.asDoubleBuffer().get(t.relativeCenters);
+				return t;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (Exception e) {
+			// A broken file is replaced
+			return null;
+		}
+	}
+
+	// Written to a temporary file that replaces the old one when it's complete
+	private static void write(File sidecar, TargetDefinition t) throws IOException {
+		byte[] name = t.name.getBytes("UTF-8");
+		int n = t.numPatches;
+		ByteBuffer buffer = ByteBuffer.allocate(56 + 4 + name.length + 4*3 + 8*2 + 4*2 +
+				4*8 + n*(8*3 + 4*3 + 8*2));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(t.lastModified);
+		buffer.putLong(t.length);
+		buffer.put(t.hash);
+		buffer.putInt(name.length);
+		buffer.put(name);
+		buffer.putInt(n);
+		buffer.putInt(t.startWithGrayscale);
+		buffer.putInt(t.patchesBeforeChange);
+		buffer.putDouble(t.sizeRealWorld[0]);
+		buffer.putDouble(t.sizeRealWorld[1]);
+		buffer.putInt(t.sizeInPixels[0]);
+		buffer.putInt(t.sizeInPixels[1]);
+		for (int value : t.gainModulationPatches)
+			buffer.putInt(value);
+		for (double value : t.referenceLAB)
+			buffer.putDouble(value);
+		for (int value : t.referenceRGB)
+			buffer.putInt(value);
+		for (double value : t.relativeCenters)
+			buffer.putDouble(value);
+		buffer.flip();
+
+		// A temporary file of its own, other threads and runs may write the
+		// same sidecar at the same time
+		File temp = Files.createTempFile(sidecar.getAbsoluteFile().getParentFile().toPath(),
+				sidecar.getName(), ".tmp").toFile();
+		boolean written = false;
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			written = true;
+		}
+		finally {
+			out.close();
+			if (!written)
+				temp.delete();
+		}
+		try {
+			try {
+				Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getNumPatches() {
+		return numPatches;
+	}
+
+	public int getStartWithGrayscale() {
+		return startWithGrayscale;
+	}
+
+	public int getPatchesBeforeChange() {
+		return patchesBeforeChange;
+	}
+
+	public double getSizeRealWorld(int i) {
+		return sizeRealWorld[i];
+	}
+
+	public int getSizeInPixels(int i) {
+		return sizeInPixels[i];
+	}
+
+	public int getGainModulationPatch(int i) {
+		return gainModulationPatches[i];
+	}
+
+	public double getReferenceLAB(int i, int j) {
+		return referenceLAB[i*3 + j];
+	}
+
+	public int getReferenceRGB(int i, int j) {
+		return referenceRGB[i*3 + j];
+	}
+
+	public double getRelativeCenter(int i, int j) {
+		return relativeCenters[i*2 + j];
+	}
+}
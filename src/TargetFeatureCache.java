@@ -0,0 +1,265 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The keypoints of a target only depend on the target image, so they are
+// extracted once and reused for every image in a batch. They are also saved in
+// a sidecar file next to the target (<target>.features) which is read by
+// later runs. The sidecar is keyed by a hash of the contents of the target
+// image and the target data, so it's recomputed when either of them changes.
+// The keypoints of each reduction of the target are stored after each other.
+public class TargetFeatureCache {
+
+	private static final int MAGIC = 0x43524654;
+	// 2: the keypoints of the reduced target are included, after the number
+	// of reductions
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".features";
+
+	// Keyed by the hash of the target image and the target data
+	private static ConcurrentHashMap<String, Features> cache =
+		new ConcurrentHashMap<String, Features>();
+	// The hash of a file, keyed by name, modification time and length so that
+	// the files aren't read again for every image
+	private static ConcurrentHashMap<String, byte[]> hashes =
+		new ConcurrentHashMap<String, byte[]>();
+
+	// Return the keypoints of the target. Returns null if the target image
+	// can't be read.
+	public static Features get(String targetName, String targetDataFilename)
+		throws IOException {
+		byte[] key = hash(targetName, targetDataFilename);
+		String hex = toHex(key);
+		Features features = cache.get(hex);
+		if (features != null)
+			return features;
+
+		File sidecar = new File(targetName + SUFFIX);
+		features = read(sidecar, key);
+		if (features != null)
+			System.out.println("Target keypoints read from " + sidecar.getName());
+		else {
+			PatchSampler target = PatchSampler.open(targetName);
+			if (target == null)
+				return null;
+			features = TargetLocator.extractTargetFeatures(target);
+			try {
+				write(sidecar, key, features);
+			}
+			catch (IOException e) {
+				// The target directory may be read-only, the keypoints are
+				// still cached in memory
+				System.out.println("Could not save " + sidecar.getName());
+			}
+		}
+		Features previous = cache.putIfAbsent(hex, features);
+		return previous != null ? previous : features;
+	}
+
+	private static byte[] hash(String targetName, String targetDataFilename)
+		throws IOException {
+		byte[] a = hash(new File(targetName));
+		byte[] b = hash(new File(targetDataFilename));
+		byte[] key = new byte[a.length + b.length];
+		System.arraycopy(a, 0, key, 0, a.length);
+		System.arraycopy(b, 0, key, a.length, b.length);
+		return digest().digest(key);
+	}
+
+	// The SHA-256 hash of the contents of a file
+	static byte[] hash(File file) throws IOException {
+		String stamp = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+		byte[] hash = hashes.get(stamp);
+		if (hash != null)
+			return hash;
+		MessageDigest digest = digest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+		}
+		finally {
+			in.close();
+		}
+		hash = digest.digest();
+		hashes.put(stamp, hash);
+		return hash;
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Returns null if the sidecar doesn't exist or belongs to another version
+	// of the target
+	private static Features read(File sidecar, byte[] key) {
+		if (!sidecar.isFile())
+			return null;
+		try {
+			RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+			try {
+				// Read rather than mapped, a mapped file can't be replaced on
+				// Windows while the mapping is alive
+				FileChannel channel = file.getChannel();
+				if (channel.size() > Integer.MAX_VALUE)
+					return null;
+				ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						return null;
+				}
+				buffer.flip();
+				if (buffer.remaining() < 8 + key.length + 4 || buffer.getInt() != MAGIC ||
+						buffer.getInt() != VERSION)
+					return null;
+				byte[] stored = new byte[key.length];
+				buffer.get(stored);
+				if (!Arrays.equals(stored, key))
+					return null;
+				int levels = buffer.getInt();
+				Features features = null, last = null;
+				for (int level = 0; level < levels; level++) {
+					Features next = readLevel(buffer);
+					if (next == null)
+						return null;
+					if (last == null)
+						features = next;
+					else
+						last.setReduced(next);
+					last = next;
+				}
+				return buffer.hasRemaining() ? null : features;
+			}
+			finally {
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// The keypoints of one reduction, null if the file is too short
+	private static Features readLevel(ByteBuffer buffer) {
+		if (buffer.remaining() < 12)
+			return null;
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		int count = buffer.getInt();
+		if (count < 0 || buffer.remaining() < (long) count*(17 + 4*Features.LENGTH))
+			return null;
+		float[] x = readFloats(buffer, count);
+		float[] y = readFloats(buffer, count);
+		float[] scale = readFloats(buffer, count);
+		float[] orientation = readFloats(buffer, count);
+		boolean[] laplacian = new boolean[count];
+		for (int i = 0; i < count; i++)
+			laplacian[i] = buffer.get() != 0;
+		float[] descriptors = readFloats(buffer, count*Features.LENGTH);
+		return new Features(width, height, count, x, y, scale, orientation,
+				laplacian, descriptors);
+	}
+
+	private static float[] readFloats(ByteBuffer buffer, int n) {
+		float[] values = new float[n];
+		buffer.asFloatBuffer().get(values);
+		buffer.position(buffer.position() + 4*n);
+		return values;
+	}
+
+	// The sidecar is written to a temporary file that replaces the old one
+	// when it's complete, so a run that is stopped never leaves a broken file
+	private static void write(File sidecar, byte[] key, Features features)
+		throws IOException {
+		int levels = 0;
+		long size = 8 + key.length + 4;
+		for (Features level = features; level != null; level = level.getReduced()) {
+			levels++;
+			size += 12 + (long) level.getCount()*(17 + 4*Features.LENGTH);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.put(key);
+		buffer.putInt(levels);
+		for (Features level = features; level != null; level = level.getReduced())
+			writeLevel(buffer, level);
+		buffer.flip();
+
+		// A temporary file of its own, other threads and runs may write the
+		// same sidecar at the same time
+		File temp = Files.createTempFile(sidecar.getAbsoluteFile().getParentFile().toPath(),
+				sidecar.getName(), ".tmp").toFile();
+		boolean written = false;
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			written = true;
+		}
+		finally {
+			file.close();
+			if (!written)
+				temp.delete();
+		}
+		try {
+			try {
+				Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	private static void writeLevel(ByteBuffer buffer, Features features) {
+		int count = features.getCount();
+		buffer.putInt(features.getWidth());
+		buffer.putInt(features.getHeight());
+		buffer.putInt(count);
+		for (int i = 0; i < count; i++)
+			buffer.putFloat(features.getX(i));
+		for (int i = 0; i < count; i++)
+			buffer.putFloat(features.getY(i));
+		for (int i = 0; i < count; i++)
+			buffer.putFloat(features.getScale(i));
+		for (int i = 0; i < count; i++)
+			buffer.putFloat(features.getOrientation(i));
+		for (int i = 0; i < count; i++)
+			buffer.put((byte) (features.getLaplacian(i) ? 1 : 0));
+		buffer.asFloatBuffer().put(features.getDescriptors(), 0, count*Features.LENGTH);
+		buffer.position(buffer.position() + 4*count*Features.LENGTH);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder s = new StringBuilder();
+		for (byte b : bytes)
+			s.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+		return s.toString();
+	}
+}
@@ -0,0 +1,328 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A library of known targets, used to identify the targets in an image without
+// telling Colorite which targets to look for. The library is a directory where
+// each target is a PNG image and an XML file with the same name (e.g.
+// CC_mini.png and CC_mini.xml).
+// The descriptors of all targets are quantized into visual words with a
+// vocabulary tree (hierarchical k-means) and each word has a list of the
+// targets it occurs in. The descriptors of an image are quantized the same way
+// and the targets vote through these lists, weighted by tf-idf. Finding the
+// word of a descriptor takes BRANCHING*DEPTH comparisons and only the targets
+// that share words with the image are visited, so the cost grows slowly with
+// the number of targets. The best candidates are then verified by matching.
+public class TargetLibrary {
+
+	private static final int BRANCHING = 8;
+	private static final int DEPTH = 3;
+	private static final int ITERATIONS = 10;
+	// Descriptors used to build the vocabulary
+	private static final int MAX_TRAINING = 50000;
+	// Candidates verified for each image, and their minimum score relative to
+	// the best candidate
+	private static final int CANDIDATES = 3;
+	private static final double MIN_RELATIVE_SCORE = 0.3;
+
+	private static ConcurrentHashMap<String, TargetLibrary> cache =
+		new ConcurrentHashMap<String, TargetLibrary>();
+
+	private String[] targetNames;
+	private String[] targetDataFilenames;
+	private Features[] features;
+	// Centers of the nodes in the tree, the children of node n are the nodes
+	// n*BRANCHING + 1 to n*BRANCHING + BRANCHING
+	private float[] centers;
+	private boolean[] used;
+	private int firstLeaf;
+	// For each word: the targets it occurs in and the weight in each target
+	private int[][] postings;
+	private float[][] weights;
+	private float[] idf;
+
+	// Load the library in a directory. The library is built once and reused
+	// until a target is added, removed or changed.
+	public static TargetLibrary get(String directory) throws IOException {
+		File[] files = new File(directory).listFiles();
+		if (files == null)
+			throw new IOException("Unable to read the target library " + directory);
+		Arrays.sort(files);
+		List<String> names = new ArrayList<String>();
+		List<String> data = new ArrayList<String>();
+		StringBuilder stamp = new StringBuilder(new File(directory).getAbsolutePath());
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.toLowerCase().endsWith(".png"))
+				continue;
+			File xml = new File(file.getParentFile(), name.substring(0, name.length() - 4) + ".xml");
+			if (!xml.isFile())
+				continue;
+			names.add(file.getPath());
+			data.add(xml.getPath());
+			stamp.append('|').append(name).append(':').append(file.lastModified())
+				.append(':').append(xml.lastModified());
+		}
+		if (names.isEmpty())
+			throw new IOException("No targets in " + directory);
+
+		TargetLibrary library = cache.get(stamp.toString());
+		if (library == null) {
+			library = new TargetLibrary(names.toArray(new String[0]),
+					data.toArray(new String[0]));
+			cache.put(stamp.toString(), library);
+		}
+		return library;
+	}
+
+	private TargetLibrary(String[] targetNames, String[] targetDataFilenames)
+		throws IOException {
+		this.targetNames = targetNames;
+		this.targetDataFilenames = targetDataFilenames;
+		int n = targetNames.length;
+		features = new Features[n];
+		int total = 0;
+		for (int t = 0; t < n; t++) {
+			features[t] = TargetFeatureCache.get(targetNames[t], targetDataFilenames[t]);
+			if (features[t] == null)
+				throw new IOException("Unable to open target " + targetNames[t]);
+			total += features[t].getCount();
+		}
+		buildVocabulary(total);
+		buildIndex();
+		System.out.println("Target library: " + n + " targets, " + postings.length + " words");
+	}
+
+	private void buildVocabulary(int total) {
+		// All descriptors, or a random selection if there are too many
+		int[] owner = new int[total];
+		int[] index = new int[total];
+		int k = 0;
+		for (int t = 0; t < features.length; t++) {
+			for (int i = 0; i < features[t].getCount(); i++) {
+				owner[k] = t;
+				index[k++] = i;
+			}
+		}
+		Random random = new Random(0);
+		int n = Math.min(total, MAX_TRAINING);
+		for (int i = 0; i < n; i++) {
+			int j = i + random.nextInt(total - i);
+			int o = owner[i]; owner[i] = owner[j]; owner[j] = o;
+			int x = index[i]; index[i] = index[j]; index[j] = x;
+		}
+		float[] training = new float[n*Features.LENGTH];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(features[owner[i]].getDescriptors(), index[i]*Features.LENGTH,
+					training, i*Features.LENGTH, Features.LENGTH);
+
+		int nodes = 0, levelSize = 1;
+		for (int d = 0; d <= DEPTH; d++) {
+			nodes += levelSize;
+			levelSize *= BRANCHING;
+		}
+		firstLeaf = nodes - levelSize/BRANCHING;
+		centers = new float[nodes*Features.LENGTH];
+		used = new boolean[nodes];
+		used[0] = true;
+		int[] members = new int[n];
+		for (int i = 0; i < n; i++)
+			members[i] = i;
+		split(training, members, n, 0, 0, random);
+	}
+
+	// Cluster the members of a node into BRANCHING children with k-means
+	private void split(float[] training, int[] members, int n, int node, int depth,
+			Random random) {
+		if (depth == DEPTH || n == 0)
+			return;
+		int first = node*BRANCHING + 1;
+		int k = Math.min(BRANCHING, n);
+		// Start from k random members
+		for (int c = 0; c < k; c++) {
+			int j = c + random.nextInt(n - c);
+			int m = members[c]; members[c] = members[j]; members[j] = m;
+			System.arraycopy(training, members[c]*Features.LENGTH, centers,
+					(first + c)*Features.LENGTH, Features.LENGTH);
+			used[first + c] = true;
+		}
+		int[] assignment = new int[n];
+		double[] sum = new double[k*Features.LENGTH];
+		int[] count = new int[k];
+		for (int it = 0; it < ITERATIONS; it++) {
+			for (int i = 0; i < n; i++)
+				assignment[i] = nearest(training, members[i]*Features.LENGTH, first, k);
+			Arrays.fill(sum, 0);
+			Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) {
+				int c = assignment[i];
+				count[c]++;
+				for (int d = 0; d < Features.LENGTH; d++)
+					sum[c*Features.LENGTH + d] += training[members[i]*Features.LENGTH + d];
+			}
+			for (int c = 0; c < k; c++) {
+				if (count[c] == 0)
+					continue;
+				for (int d = 0; d < Features.LENGTH; d++)
+					centers[(first + c)*Features.LENGTH + d] =
+						(float) (sum[c*Features.LENGTH + d]/count[c]);
+			}
+		}
+		for (int c = 0; c < k; c++) {
+			int[] child = new int[count[c]];
+			int m = 0;
+			for (int i = 0; i < n; i++)
+				if (assignment[i] == c)
+					child[m++] = members[i];
+			split(training, child, m, first + c, depth + 1, random);
+		}
+	}
+
+	// The nearest of k nodes starting with first
+	private int nearest(float[] descriptors, int offset, int first, int k) {
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int c = 0; c < k; c++) {
+			if (!used[first + c])
+				continue;
+			int base = (first + c)*Features.LENGTH;
+			double distance = 0;
+			for (int d = 0; d < Features.LENGTH && distance < bestDistance; d++) {
+				double diff = descriptors[offset + d] - centers[base + d];
+				distance += diff*diff;
+			}
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	// The visual word of a descriptor. Returns -1 if the branch of the tree
+	// ends before a leaf, which happens when there were few descriptors.
+	private int quantize(float[] descriptors, int offset) {
+		int node = 0;
+		for (int depth = 0; depth < DEPTH; depth++) {
+			int first = node*BRANCHING + 1;
+			if (!used[first])
+				return -1;
+			node = first + nearest(descriptors, offset, first, BRANCHING);
+		}
+		return node - firstLeaf;
+	}
+
+	// Inverted index with tf-idf weights, normalized per target
+	private void buildIndex() {
+		int words = centers.length/Features.LENGTH - firstLeaf;
+		int n = features.length;
+		float[][] histograms = new float[n][words];
+		int[] documents = new int[words];
+		for (int t = 0; t < n; t++) {
+			for (int i = 0; i < features[t].getCount(); i++) {
+				int word = quantize(features[t].getDescriptors(), i*Features.LENGTH);
+				if (word >= 0)
+					histograms[t][word]++;
+			}
+			for (int w = 0; w < words; w++)
+				if (histograms[t][w] > 0)
+					documents[w]++;
+		}
+		idf = new float[words];
+		for (int w = 0; w < words; w++)
+			idf[w] = documents[w] == 0 ? 0 : (float) Math.log((double) (n + 1)/documents[w]);
+
+		postings = new int[words][];
+		weights = new float[words][];
+		for (int w = 0; w < words; w++) {
+			postings[w] = new int[documents[w]];
+			weights[w] = new float[documents[w]];
+		}
+		int[] filled = new int[words];
+		for (int t = 0; t < n; t++) {
+			double norm = 0;
+			for (int w = 0; w < words; w++) {
+				histograms[t][w] *= idf[w];
+				norm += histograms[t][w]*histograms[t][w];
+			}
+			norm = Math.sqrt(norm);
+			for (int w = 0; w < words; w++) {
+				if (histograms[t][w] == 0)
+					continue;
+				postings[w][filled[w]] = t;
+				weights[w][filled[w]] = (float) (histograms[t][w]/norm);
+				filled[w]++;
+			}
+		}
+	}
+
+	// The targets that may be in the image, best candidate first. The
+	// candidates still have to be verified, e.g. with TargetLocator.locateAll.
+	public int[] identify(Features image) {
+		int words = postings.length;
+		float[] histogram = new float[words];
+		for (int i = 0; i < image.getCount(); i++) {
+			int word = quantize(image.getDescriptors(), i*Features.LENGTH);
+			if (word >= 0)
+				histogram[word]++;
+		}
+		double norm = 0;
+		for (int w = 0; w < words; w++) {
+			histogram[w] *= idf[w];
+			norm += histogram[w]*histogram[w];
+		}
+		if (norm == 0)
+			return new int[0];
+		norm = Math.sqrt(norm);
+
+		// Only the words of the image are visited
+		double[] scores = new double[features.length];
+		for (int w = 0; w < words; w++) {
+			if (histogram[w] == 0)
+				continue;
+			double q = histogram[w]/norm;
+			for (int p = 0; p < postings[w].length; p++)
+				scores[postings[w][p]] += q*weights[w][p];
+		}
+
+		Integer[] order = new Integer[features.length];
+		for (int t = 0; t < order.length; t++)
+			order[t] = t;
+		final double[] sorted = scores;
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(sorted[b], sorted[a]);
+			}
+		});
+		int n = 0;
+		int[] candidates = new int[Math.min(CANDIDATES, order.length)];
+		for (int i = 0; i < candidates.length; i++) {
+			if (scores[order[i]] <= 0 || scores[order[i]] < MIN_RELATIVE_SCORE*scores[order[0]])
+				break;
+			candidates[n++] = order[i];
+			System.out.println("Candidate target: " + new File(targetNames[order[i]]).getName() +
+					" (score " + Math.round(100*scores[order[i]])/100.0 + ")");
+		}
+		return Arrays.copyOf(candidates, n);
+	}
+
+	public int size() {
+		return targetNames.length;
+	}
+
+	public String getTargetName(int i) {
+		return targetNames[i];
+	}
+
+	public String getTargetDataFilename(int i) {
+		return targetDataFilenames[i];
+	}
+
+	public Features getFeatures(int i) {
+		return features[i];
+	}
+}
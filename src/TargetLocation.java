@@ -0,0 +1,32 @@
+// The position of a target in an image: the four corners (upper-left,
+// upper-right, lower-right and lower-left as seen on the target) and the center
+// of each patch, in pixels of the full-size image. This is the same data as
+// Find writes to imageData.xml.
+public class TargetLocation {
+
+	private int[][] corners;
+	private int[][] patches;
+	private boolean upsideDown;
+
+	public TargetLocation(int[][] corners, int[][] patches, boolean upsideDown) {
+		this.corners = corners;
+		this.patches = patches;
+		this.upsideDown = upsideDown;
+	}
+
+	public int[][] getCorners() {
+		return corners;
+	}
+
+	public int[][] getPatches() {
+		return patches;
+	}
+
+	public int getNumPatches() {
+		return patches.length;
+	}
+
+	public boolean isUpsideDown() {
+		return upsideDown;
+	}
+}
@@ -0,0 +1,557 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+// Finds the target in an image and computes the center of each patch. This is
+// a port of Find (find3.cpp) that runs in the same process as Measure:
+// keypoints are extracted from the target and the image, the descriptors are
+// matched and the homography between the target and the image is estimated
+// with RANSAC. The corners of the target and the patch centers are then
+// computed the same way as in Find.
+// Large images are searched coarse-to-fine: the target is first found in a
+// thumbnail and the homography is then refined in the region around the
+// target, so only a small part of the image is processed at full resolution.
+// The keypoints of the target are also extracted from the target image at
+// several reductions (see extractTargetFeatures()), otherwise a target that is
+// small in the thumbnail has no keypoints of the same size as those of the
+// target. The final match uses the keypoints of the target at its own size,
+// which are the most precise, and only falls back to the reductions when
+// they aren't enough.
+public class TargetLocator {
+
+	// Images larger than this are reduced before the keypoints are extracted
+	private static final int MAX_SIZE = 3000;
+	// Smallest size of the thumbnail
+	private static final int THUMBNAIL_SIZE = 1000;
+	// The target is expected to be at least this share of the image, along
+	// the longer sides. The thumbnail is made large enough for such a target
+	// to be found.
+	private static final double MIN_TARGET_SHARE = 0.1;
+	// The smaller side of the target in pixels, in the thumbnail or in the
+	// smallest reduction of the target image
+	private static final int MIN_TARGET_SIZE = 48;
+	// Inliers needed to accept a match in the thumbnail or in the region
+	private static final int MIN_INLIERS = 10;
+	// Share of the matched keypoints that must be inliers in the thumbnail
+	private static final double MIN_INLIER_RATIO = 0.25;
+	// The scale of the inlying keypoints in the thumbnail may differ this much
+	// from the scale of the homography
+	private static final double SCALE_TOLERANCE = 1.5;
+	// Margin around the target when the match is refined, relative to the
+	// size of the target
+	private static final double MARGIN = 0.1;
+	// A match is accepted if the squared distance to the nearest descriptor is
+	// less than RATIO times the distance to the second nearest
+	private static final double RATIO = 0.6;
+	// Maximum reprojection error in RANSAC, in pixels of the reduced image
+	private static final double RANSAC_THRESHOLD = 5;
+	// The same in the thumbnail, where a pixel is a large part of the target
+	private static final double THUMBNAIL_THRESHOLD = 2;
+	// The preview image is reduced by this factor
+	private static final int PREVIEW_SCALE = 8;
+
+	// Locate the target in the image. relativeCenters are the patch centers
+	// relative to the size of the target and xSize, ySize the size of the
+	// target in pixels, as given in the target data. A preview with the outline
+	// of the target and the patch centers is saved to outputImage (PNG), unless
+	// it's null. Returns null if the target isn't found.
+	public static TargetLocation locate(PatchSampler target, PatchSampler image,
+			boolean labImage, double[][] relativeCenters, int xSize, int ySize,
+			String outputImage) {
+		return locate(extractTargetFeatures(target), image, labImage, relativeCenters,
+				xSize, ySize, outputImage);
+	}
+
+	// Locate the target with keypoints that have already been extracted, see
+	// TargetFeatureCache
+	public static TargetLocation locate(Features targetFeatures, PatchSampler image,
+			boolean labImage, double[][] relativeCenters, int xSize, int ySize,
+			String outputImage) {
+		System.out.println("Object Descriptors: " + targetFeatures.getCount());
+		double[] h = findHomography(targetFeatures, image, labImage);
+		if (h == null) {
+			System.out.println("Unable to find the target in the supplied image");
+			return null;
+		}
+
+		TargetLocation location = toLocation(h, targetFeatures, relativeCenters, xSize, ySize);
+		if (outputImage != null)
+			savePreview(image, labImage, location, outputImage);
+		return location;
+	}
+
+	// Locate several targets in the same image. The keypoints of the image are
+	// only extracted once and are matched against each target. The arrays
+	// relativeCenters and sizes hold the data for each target, sizes[i] is
+	// {xSize, ySize}. The location of a target that isn't found is null.
+	public static TargetLocation[] locateAll(Features[] targets, PatchSampler image,
+			boolean labImage, double[][][] relativeCenters, int[][] sizes,
+			String outputImage) {
+		return locateAll(targets, extractFeatures(image, labImage), image, labImage,
+				relativeCenters, sizes, outputImage);
+	}
+
+	// Locate several targets with the keypoints of the image, as returned by
+	// extractFeatures()
+	public static TargetLocation[] locateAll(Features[] targets, Features features,
+			PatchSampler image, boolean labImage, double[][][] relativeCenters,
+			int[][] sizes, String outputImage) {
+		int factor = reduction(image.getWidth(), image.getHeight(), MAX_SIZE);
+		System.out.println("Image Descriptors: " + features.getCount());
+		TargetLocation[] locations = new TargetLocation[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			System.out.println("Object Descriptors: " + targets[i].getCount());
+			double[] h = match(targets[i], features, factor, 4);
+			if (h == null || !isConvex(projectCorners(h, targets[i]))) {
+				System.out.println("Unable to find target " + (i + 1) + " in the supplied image");
+				continue;
+			}
+			locations[i] = toLocation(h, targets[i], relativeCenters[i], sizes[i][0],
+					sizes[i][1]);
+		}
+		if (outputImage != null)
+			savePreview(image, labImage, locations, outputImage);
+		return locations;
+	}
+
+	// The corners and the patch centers given by the homography
+	private static TargetLocation toLocation(double[] h, Features target,
+			double[][] relativeCenters, int xSize, int ySize) {
+		int[][] corners = projectCorners(h, target);
+		boolean upsideDown = orientation(corners);
+		double angle = Math.atan((double) (corners[1][1] - corners[0][1])/
+				(corners[1][0] - corners[0][0]));
+		System.out.println("Angle (r): " + angle + ", angle: " + Math.toDegrees(angle));
+
+		int[][] patches = computePatches(corners, relativeCenters, angle, upsideDown,
+				xSize, ySize);
+		return new TargetLocation(corners, patches, upsideDown);
+	}
+
+	// Search the thumbnail first. When the target is found, the homography is
+	// refined in the region of the target. Otherwise the whole image is
+	// searched at the finest level, as Find does. Only one coarse level is
+	// tried: a level between the thumbnail and the finest one costs almost as
+	// much as the finest level.
+	private static double[] findHomography(Features target, PatchSampler image,
+			boolean lab) {
+		int width = image.getWidth(), height = image.getHeight();
+		int finest = reduction(width, height, MAX_SIZE);
+		// A long and narrow target needs a thumbnail that is too large to save
+		// anything, the image is then searched at the finest level directly
+		int coarse = thumbnailReduction(target, width, height);
+		if (coarse >= 2*finest) {
+			Features features = extractFeatures(image, 0, 0, width, height, coarse, lab);
+			double[] h = match(allLevels(target), features, THUMBNAIL_THRESHOLD*coarse,
+					MIN_INLIERS, true, true);
+			if (h != null && isConvex(projectCorners(h, target))) {
+				System.out.println("Target found in the image reduced " + coarse + " times");
+				double[] refined = refine(target, image, lab, h);
+				if (refined != null)
+					return refined;
+			}
+		}
+		Features features = extractFeatures(image, 0, 0, width, height, finest, lab);
+		System.out.println("Image Descriptors: " + features.getCount());
+		return matchLevels(target, features, finest, 4);
+	}
+
+	// The reduction of the thumbnail, where a target of MIN_TARGET_SHARE of
+	// the image has a smaller side of MIN_TARGET_SIZE pixels
+	private static int thumbnailReduction(Features target, int width, int height) {
+		double aspect = (double) Math.max(target.getWidth(), target.getHeight())/
+			Math.min(target.getWidth(), target.getHeight());
+		int size = (int) Math.max(THUMBNAIL_SIZE, MIN_TARGET_SIZE*aspect/MIN_TARGET_SHARE);
+		return Math.max(1, Math.max(width, height)/size);
+	}
+
+	// Match the target in the region around the position found in the
+	// thumbnail. The region is searched at full resolution, or reduced as much
+	// as the target is larger in the image than in the target image, since
+	// the keypoints of the target have no finer details than that. The refined
+	// corners must be close to those found in the thumbnail.
+	private static double[] refine(Features target, PatchSampler image, boolean lab,
+			double[] h) {
+		int[][] corners = projectCorners(h, target);
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int[] corner : corners) {
+			minX = Math.min(minX, corner[0]);
+			minY = Math.min(minY, corner[1]);
+			maxX = Math.max(maxX, corner[0]);
+			maxY = Math.max(maxY, corner[1]);
+		}
+		int margin = (int) (MARGIN*Math.max(maxX - minX, maxY - minY));
+		int x0 = Math.max(0, minX - margin);
+		int y0 = Math.max(0, minY - margin);
+		int x1 = Math.min(image.getWidth(), maxX + margin);
+		int y1 = Math.min(image.getHeight(), maxY + margin);
+		if (x1 - x0 < 16 || y1 - y0 < 16)
+			return null;
+		int targetFactor = reduction(target.getWidth(), target.getHeight(), MAX_SIZE);
+		int factor = Math.max(1, (int) (scale(corners, target)*targetFactor));
+		Features features = extractFeatures(image, x0, y0, x1 - x0, y1 - y0, factor, lab);
+		System.out.println("Image Descriptors: " + features.getCount() + " in " +
+				(x1 - x0) + "x" + (y1 - y0) + " region reduced " + factor + " times");
+		double[] refined = matchLevels(target, features, factor, MIN_INLIERS);
+		if (refined == null)
+			return null;
+		int[][] refinedCorners = projectCorners(refined, target);
+		for (int i = 0; i < 4; i++) {
+			if (Math.abs(refinedCorners[i][0] - corners[i][0]) > margin ||
+					Math.abs(refinedCorners[i][1] - corners[i][1]) > margin)
+				return null;
+		}
+		return refined;
+	}
+
+	// Match the keypoints of the target at its own size, and of all its
+	// reductions if that gives no homography or one that folds the target
+	private static double[] matchLevels(Features target, Features image, int factor,
+			int minInliers) {
+		double[] h = match(target, image, factor, minInliers);
+		if ((h == null || !isConvex(projectCorners(h, target))) &&
+				target.getReduced() != null)
+			h = match(allLevels(target), image, RANSAC_THRESHOLD*factor, minInliers, true,
+					false);
+		if (h == null || !isConvex(projectCorners(h, target)))
+			return null;
+		return h;
+	}
+
+	// The keypoints of the target and of all its reductions together
+	private static Features allLevels(Features target) {
+		if (target.getReduced() == null)
+			return target;
+		Features all = new Features(target.getWidth(), target.getHeight(), 0);
+		for (Features level = target; level != null; level = level.getReduced())
+			all.addAll(level);
+		return all;
+	}
+
+	// Match the keypoints and estimate the homography, which is accepted if it
+	// has at least minInliers inliers
+	private static double[] match(Features target, Features image, int factor,
+			int minInliers) {
+		return match(target, image, RANSAC_THRESHOLD*factor, minInliers, false, false);
+	}
+
+	// levels is true when target holds the keypoints of several reductions of
+	// the target, see findPairs(). In the thumbnail a wrong homography can
+	// collect many inliers, since a pixel covers a large part of the target.
+	// There, the inliers must also be a large share of the matched keypoints,
+	// and the keypoints must have the size relative to the target that the
+	// homography gives.
+	private static double[] match(Features target, Features image, double threshold,
+			int minInliers, boolean levels, boolean thumbnail) {
+		int[] pairs = findPairs(target, image, levels);
+		int n = pairs.length/2;
+		double[] src = new double[2*n];
+		double[] dst = new double[2*n];
+		for (int i = 0; i < n; i++) {
+			src[2*i] = target.getX(pairs[2*i]);
+			src[2*i + 1] = target.getY(pairs[2*i]);
+			dst[2*i] = image.getX(pairs[2*i + 1]);
+			dst[2*i + 1] = image.getY(pairs[2*i + 1]);
+		}
+		boolean[] inliers = new boolean[n];
+		double[] h = Homography.find(src, dst, n, threshold, inliers);
+		if (h == null)
+			return null;
+		int count = 0;
+		for (int i = 0; i < n; i++)
+			if (inliers[i])
+				count++;
+		if (count < minInliers)
+			return null;
+		if (!thumbnail)
+			return h;
+
+		double[] ratios = new double[count];
+		for (int i = 0, k = 0; i < n; i++) {
+			if (inliers[i])
+				ratios[k++] = image.getScale(pairs[2*i + 1])/target.getScale(pairs[2*i]);
+		}
+		Arrays.sort(ratios);
+		double keypointScale = ratios[count/2];
+		double scale = scale(projectCorners(h, target), target);
+		System.out.println("Inliers: " + count + " of " + n + ", scale " +
+				(float) scale + ", keypoint scale " + (float) keypointScale);
+		if (count < MIN_INLIER_RATIO*n || keypointScale > SCALE_TOLERANCE*scale ||
+				scale > SCALE_TOLERANCE*keypointScale)
+			return null;
+		return h;
+	}
+
+	// The size of the target in the image relative to the target image
+	private static double scale(int[][] corners, Features target) {
+		double area = 0;
+		for (int i = 0; i < 4; i++) {
+			int[] a = corners[i], b = corners[(i + 1)%4];
+			area += (double) a[0]*b[1] - (double) b[0]*a[1];
+		}
+		return Math.sqrt(Math.abs(area)/2/((double) target.getWidth()*target.getHeight()));
+	}
+
+	private static int[][] projectCorners(double[] h, Features target) {
+		double[][] srcCorners = {{0, 0}, {target.getWidth(), 0},
+				{target.getWidth(), target.getHeight()}, {0, target.getHeight()}};
+		int[][] corners = new int[4][2];
+		double[] p = new double[2];
+		for (int i = 0; i < 4; i++) {
+			Homography.project(h, srcCorners[i][0], srcCorners[i][1], p);
+			corners[i][0] = (int) Math.round(p[0]);
+			corners[i][1] = (int) Math.round(p[1]);
+		}
+		return corners;
+	}
+
+	// A homography fitted to wrong matches usually folds the target
+	private static boolean isConvex(int[][] corners) {
+		int sign = 0;
+		for (int i = 0; i < 4; i++) {
+			int[] a = corners[i], b = corners[(i + 1)%4], c = corners[(i + 2)%4];
+			long cross = (long) (b[0] - a[0])*(c[1] - b[1]) - (long) (b[1] - a[1])*(c[0] - b[0]);
+			int s = Long.signum(cross);
+			if (s == 0 || (sign != 0 && s != sign))
+				return false;
+			sign = s;
+		}
+		return true;
+	}
+
+	// Extract the keypoints of a target image. The keypoints of the target at
+	// its own size (reduced if it's larger than MAX_SIZE) are returned, and
+	// those of the target reduced 2, 4, 8, ... times more are linked to them
+	// (see Features.getReduced()), so that the target can be matched in the
+	// thumbnail also when it's small there.
+	public static Features extractTargetFeatures(PatchSampler target) {
+		int width = target.getWidth(), height = target.getHeight();
+		int factor = reduction(width, height, MAX_SIZE);
+		Features features = extractFeatures(target, 0, 0, width, height, factor, false);
+		Features last = features;
+		for (factor *= 2; Math.min(width, height)/factor >= MIN_TARGET_SIZE; factor *= 2) {
+			Features reduced = extractFeatures(target, 0, 0, width, height, factor, false);
+			last.setReduced(reduced);
+			last = reduced;
+		}
+		return features;
+	}
+
+	// Extract the keypoints of an image, reduced if it's larger than MAX_SIZE.
+	// The keypoints are returned in the coordinates of the full-size image.
+	public static Features extractFeatures(PatchSampler sampler, boolean lab) {
+		int factor = reduction(sampler.getWidth(), sampler.getHeight(), MAX_SIZE);
+		return extractFeatures(sampler, 0, 0, sampler.getWidth(), sampler.getHeight(),
+				factor, lab);
+	}
+
+	// Extract the keypoints in a region of the image reduced by factor
+	private static Features extractFeatures(PatchSampler sampler, int x0, int y0,
+			int regionWidth, int regionHeight, int factor, boolean lab) {
+		int width = regionWidth/factor;
+		int height = regionHeight/factor;
+		Features features = FeatureExtractor.extract(gray(sampler, x0, y0, factor, lab,
+				width, height), width, height);
+		features.toFullSize(factor, x0, y0, sampler.getWidth(), sampler.getHeight());
+		return features;
+	}
+
+	// Smallest integer factor that brings the image within size
+	private static int reduction(int width, int height, int size) {
+		return Math.max(1, (Math.max(width, height) + size - 1)/size);
+	}
+
+	// The luminance of the image (0-1), reduced by averaging factor x factor
+	// pixels. For LAB images the L-channel is used directly. On the coarse
+	// levels only every step:th pixel in each direction is used, which is
+	// enough for the thumbnail and avoids reading the whole image.
+	private static float[] gray(PatchSampler sampler, int x0, int y0, int factor,
+			boolean lab, int width, int height) {
+		float[] gray = new float[width*height];
+		int step = Math.max(1, factor/4);
+		int samples = (factor + step - 1)/step;
+		float scale = 1.0f/(255*samples*samples);
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				float sum = 0;
+				for (int y = y0 + row*factor; y < y0 + (row + 1)*factor; y += step) {
+					for (int x = x0 + col*factor; x < x0 + (col + 1)*factor; x += step) {
+						if (lab)
+							sum += sampler.getSample(x, y, 0);
+						else
+							sum += 0.299f*sampler.getSample(x, y, 0) +
+								0.587f*sampler.getSample(x, y, 1) +
+								0.114f*sampler.getSample(x, y, 2);
+					}
+				}
+				gray[row*width + col] = sum*scale;
+			}
+		}
+		return gray;
+	}
+
+	// Nearest neighbour matching with the ratio test. Returns the indices of
+	// the matched keypoints as target0, image0, target1, image1, ... If unique
+	// is true, an image keypoint is only paired with the target keypoint
+	// nearest to it: the same detail of the target has a keypoint at each
+	// reduction of the target, and pairs that share an image keypoint let
+	// RANSAC fit a target that has shrunk to a point.
+	private static int[] findPairs(Features target, Features image, boolean unique) {
+		float[] td = target.getDescriptors();
+		float[] id = image.getDescriptors();
+		int[] pairs = new int[2*target.getCount()];
+		double[] distances = new double[target.getCount()];
+		// The pair of each image keypoint, -1 if it has none
+		int[] owner = new int[image.getCount()];
+		Arrays.fill(owner, -1);
+		int n = 0;
+		for (int i = 0; i < target.getCount(); i++) {
+			double best = Double.MAX_VALUE, second = Double.MAX_VALUE;
+			int bestIndex = -1;
+			for (int j = 0; j < image.getCount(); j++) {
+				if (target.getLaplacian(i) != image.getLaplacian(j))
+					continue;
+				double d = distance(td, i*Features.LENGTH, id, j*Features.LENGTH, second);
+				if (d < best) {
+					second = best;
+					best = d;
+					bestIndex = j;
+				}
+				else if (d < second)
+					second = d;
+			}
+			if (bestIndex < 0 || best >= RATIO*second)
+				continue;
+			int previous = owner[bestIndex];
+			if (unique && previous >= 0) {
+				if (distances[previous] <= best)
+					continue;
+				// The pair is replaced, the slot of the old pair is reused
+				pairs[2*previous] = i;
+				distances[previous] = best;
+				continue;
+			}
+			owner[bestIndex] = n;
+			pairs[2*n] = i;
+			pairs[2*n + 1] = bestIndex;
+			distances[n] = best;
+			n++;
+		}
+		System.out.println("Matched keypoints: " + n);
+		int[] result = new int[2*n];
+		System.arraycopy(pairs, 0, result, 0, 2*n);
+		return result;
+	}
+
+	// Squared distance, stops as soon as it exceeds limit
+	private static double distance(float[] a, int ai, float[] b, int bi, double limit) {
+		double total = 0;
+		for (int k = 0; k < Features.LENGTH; k += 4) {
+			double t0 = a[ai + k] - b[bi + k];
+			double t1 = a[ai + k + 1] - b[bi + k + 1];
+			double t2 = a[ai + k + 2] - b[bi + k + 2];
+			double t3 = a[ai + k + 3] - b[bi + k + 3];
+			total += t0*t0 + t1*t1 + t2*t2 + t3*t3;
+			if (total > limit)
+				break;
+		}
+		return total;
+	}
+
+	// Check the orientation of the target. If it is upside down, change the
+	// order of the corners.
+	private static boolean orientation(int[][] corners) {
+		if (corners[0][0] > corners[1][0]) {
+			System.out.println("Target is upsidedown");
+			int[] temp = corners[2];
+			corners[2] = corners[0];
+			corners[0] = temp;
+			temp = corners[3];
+			corners[3] = corners[1];
+			corners[1] = temp;
+			return true;
+		}
+		System.out.println("Target is oriented normally");
+		return false;
+	}
+
+	// Compute the center position of the patches, see computePatches in Find
+	private static int[][] computePatches(int[][] corners, double[][] relativeCenters,
+			double angle, boolean upsideDown, int xSize, int ySize) {
+		int numPatches = relativeCenters.length;
+		int[][] patches = new int[numPatches][2];
+		double c = Math.sqrt(Math.pow(corners[1][0] - corners[0][0], 2) +
+				Math.pow(corners[1][1] - corners[0][1], 2));
+		double d = c*((double) ySize/xSize);
+		for (int i = 0; i < numPatches; i++) {
+			// If upside down, the patches are taken in the reverse order and
+			// the relative height is inverted
+			double dHalf = upsideDown ? 1 - relativeCenters[i][1] : relativeCenters[i][1];
+			double e = c*(upsideDown ? relativeCenters[numPatches - 1 - i][0] :
+				relativeCenters[i][0]);
+			double f = d*dHalf*Math.tan(angle);
+			double g = e - f;
+			double h = g*Math.cos(angle);
+			double j = h*Math.tan(angle);
+			double k = dHalf*d/Math.cos(angle);
+			patches[i][0] = (int) (h + corners[0][0]);
+			patches[i][1] = (int) (j + k + corners[0][1]);
+		}
+		return patches;
+	}
+
+	// Save a reduced copy of the image with the outline of the target and the
+	// patch centers drawn in yellow
+	public static void savePreview(PatchSampler image, boolean lab,
+			TargetLocation location, String outputImage) {
+		savePreview(image, lab, new TargetLocation[] {location}, outputImage);
+	}
+
+	// Save a preview with all targets that were found
+	public static void savePreview(PatchSampler image, boolean lab,
+			TargetLocation[] locations, String outputImage) {
+		int width = Math.max(1, image.getWidth()/PREVIEW_SCALE);
+		int height = Math.max(1, image.getHeight()/PREVIEW_SCALE);
+		BufferedImage preview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				int x = col*PREVIEW_SCALE, y = row*PREVIEW_SCALE;
+				int r = image.getSample(x, y, 0);
+				int g = lab ? r : image.getSample(x, y, 1);
+				int b = lab ? r : image.getSample(x, y, 2);
+				preview.setRGB(col, row, (r << 16) | (g << 8) | b);
+			}
+		}
+		Graphics2D g = preview.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(Color.YELLOW);
+		g.setStroke(new BasicStroke(2));
+		for (TargetLocation location : locations) {
+			if (location == null)
+				continue;
+			int[][] corners = location.getCorners();
+			for (int i = 0; i < 4; i++) {
+				int[] a = corners[i], b = corners[(i + 1)%4];
+				g.drawLine(a[0]/PREVIEW_SCALE, a[1]/PREVIEW_SCALE, b[0]/PREVIEW_SCALE,
+						b[1]/PREVIEW_SCALE);
+			}
+			for (int[] patch : location.getPatches())
+				g.drawOval(patch[0]/PREVIEW_SCALE - 2, patch[1]/PREVIEW_SCALE - 2, 4, 4);
+		}
+		g.dispose();
+		try {
+			ImageIO.write(preview, "png", new File(outputImage));
+		}
+		catch (IOException e) {
+			System.out.println("Could not save output image");
+		}
+	}
+}
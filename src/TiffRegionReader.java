@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads single samples from an uncompressed TIFF without decoding the image.
+// The file is memory-mapped and the IFD is parsed once, after that a sample
+// is read directly from the strip or tile that holds it. Only the pages of the
+// file that contain the sampled patches are read from disk, so the cost of
+// sampling depends on the number of patches rather than on the size of the file.
+// Compressed, floating point and BigTIFF files are not handled, open() returns
+// null for those and the caller has to decode the image some other way. So do
+// DNG files and files whose first image is a reduced-resolution preview, where
+// the full image is in another IFD, and color spaces other than RGB and CIELab.
+// A file whose values or strips don't fit in the file, e.g. a truncated one,
+// isn't read either.
+public class TiffRegionReader {
+
+	private static final int NEW_SUBFILE_TYPE = 254;
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int PHOTOMETRIC = 262;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int PLANAR_CONFIGURATION = 284;
+	private static final int TILE_WIDTH = 322;
+	private static final int TILE_LENGTH = 323;
+	private static final int TILE_OFFSETS = 324;
+	private static final int TILE_BYTE_COUNTS = 325;
+	private static final int SAMPLE_FORMAT = 339;
+	private static final int DNG_VERSION = 50706;
+
+	private MappedByteBuffer buffer;
+	private int width;
+	private int height;
+	private int bitsPerSample;
+	private int samplesPerPixel;
+	private int photometric;
+	private boolean planar;
+	private boolean tiled;
+	// For strips the chunk width is the image width and the chunk height
+	// is RowsPerStrip
+	private int chunkWidth;
+	private int chunkHeight;
+	private int chunksAcross;
+	private int chunksDown;
+	private long[] chunkOffsets;
+
+	private TiffRegionReader() {
+	}
+
+	// Map the file and parse the first IFD. Returns null if the file isn't a
+	// TIFF that can be read directly.
+	public static TiffRegionReader open(String filename) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE)
+				return null;
+			TiffRegionReader reader = new TiffRegionReader();
+			// The mapping stays valid after the channel is closed
+			reader.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (!reader.readHeader())
+				return null;
+			return reader;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private boolean readHeader() {
+		if (buffer.get(0) == 'I' && buffer.get(1) == 'I')
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		else if (buffer.get(0) == 'M' && buffer.get(1) == 'M')
+			buffer.order(ByteOrder.BIG_ENDIAN);
+		else
+			return false;
+		// 43 is BigTIFF
+		if ((buffer.getShort(2) & 0xffff) != 42)
+			return false;
+
+		long ifd = buffer.getInt(4) & 0xffffffffL;
+		if (ifd + 2 > buffer.capacity())
+			return false;
+
+		int compression = 1, planarConfiguration = 1, sampleFormat = 1;
+		int subfileType = 0;
+		boolean dng = false;
+		int rowsPerStrip = Integer.MAX_VALUE;
+		int tileWidth = 0, tileLength = 0;
+		samplesPerPixel = 1;
+		bitsPerSample = 1;
+		long[] stripOffsets = null, tileOffsets = null;
+		long[] stripByteCounts = null, tileByteCounts = null;
+
+		int entries = buffer.getShort((int) ifd) & 0xffff;
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) ifd + 2 + 12*i;
+			if (entry + 12 > buffer.capacity())
+				return false;
+			int tag = buffer.getShort(entry) & 0xffff;
+			switch (tag) {
+			case NEW_SUBFILE_TYPE:
+				subfileType = (int) readValue(entry, 0);
+				break;
+			case IMAGE_WIDTH:
+				width = (int) readValue(entry, 0);
+				break;
+			case IMAGE_LENGTH:
+				height = (int) readValue(entry, 0);
+				break;
+			case BITS_PER_SAMPLE:
+				// All channels are assumed to have the same depth
+				bitsPerSample = (int) readValue(entry, 0);
+				break;
+			case COMPRESSION:
+				compression = (int) readValue(entry, 0);
+				break;
+			case PHOTOMETRIC:
+				photometric = (int) readValue(entry, 0);
+				break;
+			case STRIP_OFFSETS:
+				stripOffsets = readValues(entry);
+				if (stripOffsets == null)
+					return false;
+				break;
+			case STRIP_BYTE_COUNTS:
+				stripByteCounts = readValues(entry);
+				if (stripByteCounts == null)
+					return false;
+				break;
+			case SAMPLES_PER_PIXEL:
+				samplesPerPixel = (int) readValue(entry, 0);
+				break;
+			case ROWS_PER_STRIP:
+				rowsPerStrip = (int) Math.min(readValue(entry, 0), Integer.MAX_VALUE);
+				break;
+			case PLANAR_CONFIGURATION:
+				planarConfiguration = (int) readValue(entry, 0);
+				break;
+			case TILE_WIDTH:
+				tileWidth = (int) readValue(entry, 0);
+				break;
+			case TILE_LENGTH:
+				tileLength = (int) readValue(entry, 0);
+				break;
+			case TILE_OFFSETS:
+				tileOffsets = readValues(entry);
+				if (tileOffsets == null)
+					return false;
+				break;
+			case TILE_BYTE_COUNTS:
+				tileByteCounts = readValues(entry);
+				if (tileByteCounts == null)
+					return false;
+				break;
+			case SAMPLE_FORMAT:
+				sampleFormat = (int) readValue(entry, 0);
+				break;
+			case DNG_VERSION:
+				dng = true;
+				break;
+			default:
+				break;
+			}
+		}
+
+		// readValue() returns -1 for a value outside the file, which fails
+		// these checks
+		if (compression != 1 || sampleFormat == 3 || sampleFormat < 0 ||
+				width <= 0 || height <= 0)
+			return false;
+		// Bit 0 is set for a reduced-resolution image, e.g. the preview in IFD0
+		// of a DNG. The patch locations are in the full image.
+		if ((subfileType & 1) != 0 || dng)
+			return false;
+		// RGB and CIELab. YCbCr would be read as RGB, and ICCLab (unsigned a
+		// and b) and ITULab (another scale) would be read as CIELab.
+		if (photometric != 2 && photometric != 8)
+			return false;
+		if (bitsPerSample != 8 && bitsPerSample != 16)
+			return false;
+		if (samplesPerPixel < 1 || rowsPerStrip < 1 ||
+				(planarConfiguration != 1 && planarConfiguration != 2))
+			return false;
+		planar = planarConfiguration == 2;
+
+		long[] byteCounts;
+		if (tileOffsets != null && tileWidth > 0 && tileLength > 0) {
+			tiled = true;
+			chunkWidth = tileWidth;
+			chunkHeight = tileLength;
+			chunkOffsets = tileOffsets;
+			byteCounts = tileByteCounts;
+		}
+		else if (stripOffsets != null) {
+			chunkWidth = width;
+			chunkHeight = Math.min(rowsPerStrip, height);
+			chunkOffsets = stripOffsets;
+			byteCounts = stripByteCounts;
+		}
+		else
+			return false;
+		chunksAcross = (width + chunkWidth - 1)/chunkWidth;
+		chunksDown = (height + chunkHeight - 1)/chunkHeight;
+
+		long expected = (long) chunksAcross*chunksDown*(planar ? samplesPerPixel : 1);
+		if (chunkOffsets.length < expected ||
+				(byteCounts != null && byteCounts.length < expected))
+			return false;
+		// Every chunk has to be in the file. Tiles are always whole, the last
+		// strip only holds the rows that are left.
+		long pixelBytes = (planar ? 1 : samplesPerPixel)*(bitsPerSample/8);
+		for (int i = 0; i < expected; i++) {
+			int rows = chunkHeight;
+			if (!tiled)
+				rows = Math.min(chunkHeight, height - (i % chunksDown)*chunkHeight);
+			long size = (long) rows*chunkWidth*pixelBytes;
+			if (!fits(chunkOffsets[i], size) || (byteCounts != null && byteCounts[i] < size))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean fits(long offset, long length) {
+		return offset >= 0 && length >= 0 && offset + length <= buffer.capacity();
+	}
+
+	// Read value number index of an IFD entry. Values that fit in four bytes
+	// are stored in the entry itself, otherwise the entry holds an offset.
+	// Returns -1 if the value is outside the file.
+	private long readValue(int entry, int index) {
+		int type = buffer.getShort(entry + 2) & 0xffff;
+		long count = buffer.getInt(entry + 4) & 0xffffffffL;
+		int size = (type == 3) ? 2 : 4;
+		long pos;
+		if (count*size <= 4)
+			pos = entry + 8 + index*size;
+		else
+			pos = (buffer.getInt(entry + 8) & 0xffffffffL) + (long) index*size;
+		if (!fits(pos, size))
+			return -1;
+		if (type == 3)
+			return buffer.getShort((int) pos) & 0xffff;
+		else
+			return buffer.getInt((int) pos) & 0xffffffffL;
+	}
+
+	// Returns null if the values are outside the file
+	private long[] readValues(int entry) {
+		int type = buffer.getShort(entry + 2) & 0xffff;
+		long count = buffer.getInt(entry + 4) & 0xffffffffL;
+		int size = (type == 3) ? 2 : 4;
+		if (count*size > 4 && !fits(buffer.getInt(entry + 8) & 0xffffffffL, count*size))
+			return null;
+		long[] values = new long[(int) count];
+		for (int i = 0; i < count; i++) {
+			values[i] = readValue(entry, i);
+		}
+		return values;
+	}
+
+	// Return channel c of the pixel in (x, y) as an unsigned value
+	public int getSample(int x, int y, int c) {
+		int chunk = (y/chunkHeight)*chunksAcross + x/chunkWidth;
+		int bytes = bitsPerSample/8;
+		long pos;
+		if (planar) {
+			chunk += c*chunksAcross*chunksDown;
+			pos = ((long) (y % chunkHeight)*chunkWidth + x % chunkWidth)*bytes;
+		}
+		else {
+			pos = (((long) (y % chunkHeight)*chunkWidth + x % chunkWidth)*
+					samplesPerPixel + c)*bytes;
+		}
+		int index = (int) (chunkOffsets[chunk] + pos);
+		if (bytes == 1)
+			return buffer.get(index) & 0xff;
+		else
+			return buffer.getShort(index) & 0xffff;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	public int getSamplesPerPixel() {
+		return samplesPerPixel;
+	}
+
+	public int getPhotometricInterpretation() {
+		return photometric;
+	}
+
+	public boolean isTiled() {
+		return tiled;
+	}
+}
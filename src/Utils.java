@@ -1,5 +1,6 @@
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.Toolkit;
@@ -12,6 +13,11 @@ import javax.swing.JLabel;
 public class Utils extends JFrame {
 
 	public static void errorWindow(int screenWidth, int screenHeight, int windowWidth, int windowHeight, String text) {
+		// There's no screen when Colorite runs as a batch on a server
+		if (GraphicsEnvironment.isHeadless()) {
+			System.out.println("Error: " + text);
+			return;
+		}
 		final JFrame error = new JFrame("Colorite: Error");
 		
 		error.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
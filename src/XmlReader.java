@@ -0,0 +1,133 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+// Reads the values of a fixed set of elements from an XML file with a StAX
+// pull parser, in one pass and without building a DOM. This is used for the
+// documents of Colorite (target data, image data and its template, and the
+// quality levels), see TargetDefinition, ImageData and ImageQuality.
+// A path is matched from the end like an XPath starting with //, e.g.
+// "gainModulation/*/min" matches /imageQuality/tonalCapture/gainModulation/
+// L95-L90/min. Only elements without child elements are matched. The paths
+// are split once when the reader is created and a reader can be used from
+// several threads at once.
+public class XmlReader {
+
+	// XMLInputFactory isn't thread-safe, one is created per thread
+	private static ThreadLocal<XMLInputFactory> factory = new ThreadLocal<XMLInputFactory>() {
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+			return factory;
+		}
+	};
+
+	private String[][] paths;
+
+	public XmlReader(String... paths) {
+		this.paths = new String[paths.length][];
+		for (int i = 0; i < paths.length; i++)
+			this.paths[i] = paths[i].split("/");
+	}
+
+	// The text of the elements that match each path, in document order. An
+	// empty element gives an empty string.
+	public String[][] read(String filename) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(new File(filename)), 
+				65536);
+		try {
+			return read(in, filename);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// Read a document that isn't a file, name is used in the error messages.
+	// The stream isn't closed.
+	public String[][] read(InputStream in, String name) throws IOException {
+		List<List<String>> values = new ArrayList<List<String>>();
+		for (int i = 0; i < paths.length; i++)
+			values.add(new ArrayList<String>());
+
+		try {
+			XMLStreamReader reader = factory.get().createXMLStreamReader(in);
+			try {
+				String[] stack = new String[16];
+				int depth = 0;
+				boolean leaf = false;
+				StringBuilder text = new StringBuilder();
+				while (reader.hasNext()) {
+					switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						if (depth == stack.length)
+							stack = Arrays.copyOf(stack, 2*depth);
+						stack[depth++] = reader.getLocalName();
+						leaf = true;
+						text.setLength(0);
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+						if (leaf)
+							text.append(reader.getTextCharacters(), reader.getTextStart(),
+									reader.getTextLength());
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						if (leaf) {
+							for (int i = 0; i < paths.length; i++) {
+								if (matches(paths[i], stack, depth))
+									values.get(i).add(text.toString().trim());
+							}
+						}
+						leaf = false;
+						depth--;
+						break;
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IOException("Could not read " + name + ": " + e.getMessage(), e);
+		}
+
+		String[][] result = new String[paths.length][];
+		for (int i = 0; i < paths.length; i++)
+			result[i] = values.get(i).toArray(new String[0]);
+		return result;
+	}
+
+	private static boolean matches(String[] path, String[] stack, int depth) {
+		if (path.length > depth)
+			return false;
+		for (int j = 1; j <= path.length; j++) {
+			String name = path[path.length - j];
+			if (!name.equals("*") && !name.equals(stack[depth - j]))
+				return false;
+		}
+		return true;
+	}
+
+	// The first non-empty value, for elements that must be in the file
+	public static String first(String[] values, String path, String filename)
+		throws IOException {
+		for (String value : values) {
+			if (value.length() > 0)
+				return value;
+		}
+		throw new IOException("No " + path + " in " + filename);
+	}
+}